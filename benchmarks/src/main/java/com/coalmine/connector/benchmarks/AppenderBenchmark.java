@@ -0,0 +1,72 @@
+package com.coalmine.connector.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.coalmine.connector.logging.CoalmineAppender;
+
+/**
+ * CoalmineAppender.doAppend() for an error with a stack trace, from one and
+ * from several logging threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppenderBenchmark {
+	
+	private CoalmineAppender appender;
+	
+	private LoggingEvent event;
+	
+	@Setup
+	public void setUp() {
+		LoggerContext context = new LoggerContext();
+		Logger logger = context.getLogger("com.example.OrderService");
+		
+		appender = new CoalmineAppender();
+		appender.setContext(context);
+		appender.setSignature(Fixtures.SIGNATURE);
+		appender.setEnvironment("Benchmark");
+		appender.start();
+		appender.getConnector().setTransport(new NullTransport());
+		
+		event = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR,
+				"Could not save order", Fixtures.exception(), null);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		appender.stop();
+	}
+	
+	@Benchmark
+	public void append() {
+		appender.doAppend(event);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public void appendContended() {
+		appender.doAppend(event);
+	}
+}
@@ -0,0 +1,86 @@
+package com.coalmine.connector.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coalmine.connector.NoneBlockingConnector;
+import com.coalmine.connector.notification.LoggedNotification;
+
+/**
+ * NoneBlockingConnector.send() from 1 to 64 producer threads. The queue
+ * overflows under the higher thread counts, so the results include the cost
+ * of counting dropped notifications, as in production under a burst.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectorSendBenchmark {
+	
+	@State(Scope.Benchmark)
+	public static class Connector {
+		
+		NoneBlockingConnector connector;
+		
+		@Setup(Level.Trial)
+		public void start() {
+			connector = Fixtures.connector(1024);
+		}
+		
+		@TearDown(Level.Trial)
+		public void stop() {
+			connector.stop(0);
+		}
+	}
+	
+	@State(Scope.Thread)
+	public static class Producer {
+		
+		LoggedNotification notification;
+		
+		@Setup(Level.Trial)
+		public void build() {
+			notification = new LoggedNotification(Fixtures.exception());
+			// Render up front so delivery threads never write the notification concurrently.
+			notification.getStackTrace();
+		}
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public boolean threads01(Connector connector, Producer producer) {
+		return connector.connector.send(producer.notification);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public boolean threads04(Connector connector, Producer producer) {
+		return connector.connector.send(producer.notification);
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public boolean threads16(Connector connector, Producer producer) {
+		return connector.connector.send(producer.notification);
+	}
+	
+	@Benchmark
+	@Threads(64)
+	public boolean threads64(Connector connector, Producer producer) {
+		return connector.connector.send(producer.notification);
+	}
+}
@@ -0,0 +1,41 @@
+package com.coalmine.connector.benchmarks;
+
+import com.coalmine.connector.NoneBlockingConnector;
+
+/**
+ * Inputs shared by the benchmarks.
+ */
+final class Fixtures {
+	
+	static final String SIGNATURE = "benchmark";
+	
+	private Fixtures() {
+	}
+	
+	/**
+	 * @return An exception with a stack about as deep as one thrown inside a web framework
+	 */
+	static RuntimeException exception() {
+		return recurse(60);
+	}
+	
+	/**
+	 * @param queueCapacity Capacity of the connector's queue
+	 * @return A started connector that delivers to a NullTransport
+	 */
+	static NoneBlockingConnector connector(int queueCapacity) {
+		NoneBlockingConnector connector = new NoneBlockingConnector(SIGNATURE, queueCapacity);
+		connector.setTransport(new NullTransport());
+		connector.setApplicationEnvironment("Benchmark");
+		connector.setVersion("1.0.0");
+		connector.start();
+		return connector;
+	}
+	
+	private static RuntimeException recurse(int depth) {
+		if (depth == 0) {
+			return new IllegalStateException("Order 1234 could not be saved: 'duplicate key'");
+		}
+		return recurse(depth - 1);
+	}
+}
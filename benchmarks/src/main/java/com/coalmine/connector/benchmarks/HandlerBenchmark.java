@@ -0,0 +1,64 @@
+package com.coalmine.connector.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coalmine.connector.logging.CoalmineHandler;
+
+/**
+ * CoalmineHandler.publish() for a SEVERE record with an exception, through
+ * the asynchronous connector.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+	
+	private CoalmineHandler handler;
+	
+	private LogRecord record;
+	
+	@Setup
+	public void setUp() {
+		handler = new CoalmineHandler(Fixtures.connector(1024));
+		
+		record = new LogRecord(Level.SEVERE, "Could not save order");
+		record.setLoggerName("com.example.OrderService");
+		record.setSourceClassName("com.example.OrderService");
+		record.setSourceMethodName("save");
+		record.setThrown(Fixtures.exception());
+	}
+	
+	@TearDown
+	public void tearDown() {
+		handler.close();
+	}
+	
+	@Benchmark
+	public void publish() {
+		handler.publish(record);
+	}
+	
+	@Benchmark
+	@Threads(8)
+	public void publishContended() {
+		handler.publish(record);
+	}
+}
@@ -0,0 +1,83 @@
+package com.coalmine.connector.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.coalmine.connector.notification.LoggedNotification;
+
+/**
+ * Cost of building a notification on the thread that hit the error, and of
+ * serializing it on the delivery thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationBenchmark {
+	
+	private RuntimeException exception;
+	
+	private StubRequest request;
+	
+	private LoggedNotification notification;
+	
+	private StringBuilder json;
+	
+	@Setup
+	public void setUp() {
+		exception = Fixtures.exception();
+		request = new StubRequest();
+		notification = new LoggedNotification(exception);
+		notification.setRequest(request);
+		json = new StringBuilder(16 * 1024);
+	}
+	
+	@Benchmark
+	public LoggedNotification construct() {
+		return new LoggedNotification(exception);
+	}
+	
+	@Benchmark
+	public LoggedNotification constructWithRequest() {
+		LoggedNotification built = new LoggedNotification(exception);
+		built.setRequest(request);
+		return built;
+	}
+	
+	/**
+	 * Serialization of an already rendered notification; rendering the stack
+	 * trace is only paid by the first call.
+	 */
+	@Benchmark
+	public int writeJson() throws IOException {
+		json.setLength(0);
+		notification.writeJson(json);
+		return json.length();
+	}
+	
+	/**
+	 * Rendering and serialization of a fresh notification, as a delivery
+	 * thread does it.
+	 */
+	@Benchmark
+	public int constructAndWriteJson() throws IOException {
+		LoggedNotification built = new LoggedNotification(exception);
+		built.setRequest(request);
+		json.setLength(0);
+		built.writeJson(json);
+		return json.length();
+	}
+}
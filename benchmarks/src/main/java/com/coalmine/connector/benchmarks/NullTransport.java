@@ -0,0 +1,23 @@
+package com.coalmine.connector.benchmarks;
+
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+
+/**
+ * Accepts every request without any I/O, so benchmarks measure the connector
+ * rather than the network.
+ */
+public class NullTransport implements Transport {
+	
+	private static final TransportResponse OK = new TransportResponse(200, null, "", true);
+	
+	@Override
+	public TransportResponse post(TransportRequest request) {
+		return OK;
+	}
+	
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,314 @@
+package com.coalmine.connector.benchmarks;
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * A request with the headers and parameters of a typical browser form post.
+ * Only what LoggedNotification.setRequest() reads is filled in.
+ */
+@SuppressWarnings("rawtypes")
+public class StubRequest implements HttpServletRequest {
+	
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	
+	private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+	
+	public StubRequest() {
+		headers.put("Host", "shop.example.com");
+		headers.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36");
+		headers.put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		headers.put("Accept-Language", "en-US,en;q=0.5");
+		headers.put("Accept-Encoding", "gzip, deflate, br");
+		headers.put("Referer", "https://shop.example.com/cart");
+		headers.put("Cookie", "JSESSIONID=8F0C5A0E2B7D4C1A9E3F6B2D1C0A9E8F; theme=dark");
+		headers.put("Content-Type", "application/x-www-form-urlencoded");
+		headers.put("Connection", "keep-alive");
+		
+		parameters.put("orderId", new String[] { "1234" });
+		parameters.put("item", new String[] { "sku-1", "sku-2", "sku-3" });
+		parameters.put("coupon", new String[] { "WINTER" });
+	}
+	
+	@Override
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+	
+	@Override
+	public Enumeration getHeaderNames() {
+		return Collections.enumeration(headers.keySet());
+	}
+	
+	@Override
+	public Enumeration getHeaders(String name) {
+		String value = headers.get(name);
+		return Collections.enumeration(value == null ? Collections.<String>emptyList() : Collections.singletonList(value));
+	}
+	
+	@Override
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values == null ? null : values[0];
+	}
+	
+	@Override
+	public Enumeration getParameterNames() {
+		return Collections.enumeration(parameters.keySet());
+	}
+	
+	@Override
+	public String[] getParameterValues(String name) {
+		return parameters.get(name);
+	}
+	
+	@Override
+	public Map getParameterMap() {
+		return parameters;
+	}
+	
+	@Override
+	public StringBuffer getRequestURL() {
+		return new StringBuffer("https://shop.example.com/checkout");
+	}
+	
+	@Override
+	public String getRequestURI() {
+		return "/checkout";
+	}
+	
+	@Override
+	public String getQueryString() {
+		return "step=payment";
+	}
+	
+	@Override
+	public String getMethod() {
+		return "POST";
+	}
+	
+	@Override
+	public String getCharacterEncoding() {
+		return "UTF-8";
+	}
+	
+	@Override
+	public String getContentType() {
+		return headers.get("Content-Type");
+	}
+	
+	@Override
+	public int getContentLength() {
+		return 64;
+	}
+	
+	@Override
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+	
+	@Override
+	public String getScheme() {
+		return "https";
+	}
+	
+	@Override
+	public String getServerName() {
+		return "shop.example.com";
+	}
+	
+	@Override
+	public int getServerPort() {
+		return 443;
+	}
+	
+	@Override
+	public String getRemoteAddr() {
+		return "203.0.113.7";
+	}
+	
+	@Override
+	public String getRemoteHost() {
+		return "203.0.113.7";
+	}
+	
+	@Override
+	public int getRemotePort() {
+		return 51234;
+	}
+	
+	@Override
+	public String getLocalName() {
+		return "app-1";
+	}
+	
+	@Override
+	public String getLocalAddr() {
+		return "10.0.0.12";
+	}
+	
+	@Override
+	public int getLocalPort() {
+		return 8080;
+	}
+	
+	@Override
+	public Locale getLocale() {
+		return Locale.US;
+	}
+	
+	@Override
+	public Enumeration getLocales() {
+		return Collections.enumeration(Collections.singletonList(Locale.US));
+	}
+	
+	@Override
+	public boolean isSecure() {
+		return true;
+	}
+	
+	@Override
+	public String getAuthType() {
+		return null;
+	}
+	
+	@Override
+	public Cookie[] getCookies() {
+		return null;
+	}
+	
+	@Override
+	public long getDateHeader(String name) {
+		return -1;
+	}
+	
+	@Override
+	public int getIntHeader(String name) {
+		return -1;
+	}
+	
+	@Override
+	public String getPathInfo() {
+		return null;
+	}
+	
+	@Override
+	public String getPathTranslated() {
+		return null;
+	}
+	
+	@Override
+	public String getContextPath() {
+		return "";
+	}
+	
+	@Override
+	public String getRemoteUser() {
+		return null;
+	}
+	
+	@Override
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+	
+	@Override
+	public Principal getUserPrincipal() {
+		return null;
+	}
+	
+	@Override
+	public String getRequestedSessionId() {
+		return null;
+	}
+	
+	@Override
+	public String getServletPath() {
+		return "/checkout";
+	}
+	
+	@Override
+	public HttpSession getSession(boolean create) {
+		return null;
+	}
+	
+	@Override
+	public HttpSession getSession() {
+		return null;
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdValid() {
+		return false;
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdFromCookie() {
+		return false;
+	}
+	
+	@Override
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+	
+	@Override
+	@Deprecated
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+	
+	@Override
+	public Object getAttribute(String name) {
+		return null;
+	}
+	
+	@Override
+	public Enumeration getAttributeNames() {
+		return Collections.enumeration(Collections.emptyList());
+	}
+	
+	@Override
+	public void setAttribute(String name, Object value) {
+	}
+	
+	@Override
+	public void removeAttribute(String name) {
+	}
+	
+	@Override
+	public void setCharacterEncoding(String encoding) {
+	}
+	
+	@Override
+	public ServletInputStream getInputStream() {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public BufferedReader getReader() {
+		throw new UnsupportedOperationException();
+	}
+	
+	@Override
+	public RequestDispatcher getRequestDispatcher(String path) {
+		return null;
+	}
+	
+	@Override
+	@Deprecated
+	public String getRealPath(String path) {
+		return null;
+	}
+}
@@ -0,0 +1,95 @@
+package com.coalmine.connector.jdk21;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+
+/**
+ * Transport backed by the JDK's non-blocking java.net.http.HttpClient. The
+ * client multiplexes requests over its own connection pool, and a thread
+ * waiting for a response is parked rather than pinned, so many virtual
+ * threads can wait on slow requests cheaply.
+ *
+ * The connect timeout is a property of the HttpClient, so the client is built
+ * with the connect timeout of the first request it sees and rebuilt if a later
+ * request asks for a different one.
+ */
+public class HttpClientTransport implements Transport {
+	
+	private volatile HttpClient client;
+	
+	private volatile int clientConnectTimeout = -1;
+	
+	@Override
+	public TransportResponse post(TransportRequest request) throws IOException {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(request.getUrl()))
+				.header("Content-Type", request.getContentType())
+				// The body buffer is reused once post() returns, so it is sent as is, not copied.
+				.POST(HttpRequest.BodyPublishers.ofByteArray(request.getBody(), 0, request.getBodyLength()));
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			builder.header(header.getKey(), header.getValue());
+		}
+		if (request.getReadTimeout() > 0) {
+			builder.timeout(Duration.ofMillis(request.getReadTimeout()));
+		}
+		
+		HttpResponse<String> response;
+		try {
+			response = client(request.getConnectTimeout()).send(builder.build(), HttpResponse.BodyHandlers.ofString());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for Coalmine", e);
+		}
+		
+		Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+			if (!header.getValue().isEmpty()) {
+				headers.put(header.getKey(), header.getValue().get(0));
+			}
+		}
+		// HttpClient does not report whether a pooled connection was used.
+		return new TransportResponse(response.statusCode(), headers, response.body(), false);
+	}
+	
+	@Override
+	public void close() {
+		HttpClient current = client;
+		client = null;
+		clientConnectTimeout = -1;
+		if (current != null) {
+			// close() would wait for requests still in flight; connectors
+			// have already waited as long as their deadline allows.
+			current.shutdownNow();
+		}
+	}
+	
+	private HttpClient client(int connectTimeout) {
+		HttpClient current = client;
+		if (current != null && clientConnectTimeout == connectTimeout) {
+			return current;
+		}
+		
+		synchronized (this) {
+			if (client == null || clientConnectTimeout != connectTimeout) {
+				HttpClient.Builder builder = HttpClient.newBuilder()
+						.followRedirects(HttpClient.Redirect.NEVER);
+				if (connectTimeout > 0) {
+					builder.connectTimeout(Duration.ofMillis(connectTimeout));
+				}
+				client = builder.build();
+				clientConnectTimeout = connectTimeout;
+			}
+			return client;
+		}
+	}
+}
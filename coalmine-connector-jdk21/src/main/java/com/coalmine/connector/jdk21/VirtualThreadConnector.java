@@ -0,0 +1,210 @@
+package com.coalmine.connector.jdk21;
+
+import java.util.Collections;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.notification.Notification;
+
+/**
+ * Connector for Java 21 and later that delivers each notification on its own
+ * virtual thread, so send() returns immediately and a slow Coalmine server
+ * only ties up cheap virtual threads rather than a fixed pool of workers.
+ *
+ * The number of deliveries in flight at once is capped. When the cap is
+ * reached, further notifications are dropped, counted and reported in a
+ * periodic warning, like the NoneBlockingConnector does when its queue is
+ * full. Requests go through an HttpClientTransport by default.
+ *
+ * On older runtimes use SimpleConnector or NoneBlockingConnector instead.
+ */
+public class VirtualThreadConnector extends SimpleConnector {
+	
+	private static final int DEFAULT_MAX_CONCURRENCY = 64;
+	private static final long DROP_REPORT_INTERVAL = 60000;
+	private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConnector.class);
+	
+	private final int maxConcurrency;
+	
+	/** One permit per delivery allowed in flight. */
+	private final Semaphore permits;
+	
+	private final ThreadFactory threadFactory = Thread.ofVirtual().name("coalmine-delivery-", 0).factory();
+	
+	/** Number of notifications skipped because too many deliveries were in flight. */
+	private final AtomicLong dropped = new AtomicLong();
+	
+	/** Dropped count at the time of the last warning. Guarded by this. */
+	private long reportedDropped;
+	
+	private volatile long lastDropReport;
+	
+	private volatile boolean accepting = true;
+	
+	public VirtualThreadConnector(String signature) {
+		this(signature, DEFAULT_MAX_CONCURRENCY);
+	}
+	
+	/**
+	 * @param signature The application's Coalmine signature
+	 * @param maxConcurrency Maximum number of deliveries in flight at once
+	 */
+	public VirtualThreadConnector(String signature, int maxConcurrency) {
+		super(signature);
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("Max concurrency must be at least 1");
+		}
+		
+		this.maxConcurrency = maxConcurrency;
+		this.permits = new Semaphore(maxConcurrency);
+		setTransport(new HttpClientTransport());
+	}
+	
+	@Override
+	public boolean send(Notification notification) {
+		if (isRepeat(notification)) {
+			return true;
+		}
+		
+		if (!accepting || !permits.tryAcquire()) {
+			dropped.incrementAndGet();
+			metrics.recordDropped(1);
+			reportDropped();
+			return false;
+		}
+		
+		try {
+			threadFactory.newThread(() -> {
+				try {
+					sendBatch(Collections.singletonList(notification));
+				} finally {
+					permits.release();
+				}
+			}).start();
+		} catch (RuntimeException e) {
+			permits.release();
+			LOG.error("Unable to start delivery of notification to Coalmine", e);
+			metrics.recordDropped(1);
+			return false;
+		}
+		metrics.recordEnqueued();
+		return true;
+	}
+	
+	@Override
+	public void start() {
+		accepting = true;
+		super.start();
+	}
+	
+	/**
+	 * Stop the connector, waiting up to the connect and read timeouts for
+	 * deliveries in flight to finish before closing the transport.
+	 */
+	@Override
+	public void stop() {
+		stop(readTimeout + timeout);
+	}
+	
+	/**
+	 * Send the summaries of aggregated repeats, stop accepting notifications
+	 * and wait for deliveries in flight to finish, all within one deadline,
+	 * then close the transport.
+	 * 
+	 * @param timeout Maximum milliseconds to wait for pending notifications
+	 */
+	@Override
+	public void stop(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		if (aggregator != null) {
+			aggregator.stop(this);
+		}
+		accepting = false;
+		if (!awaitDeliveries(Math.max(0, deadline - System.currentTimeMillis()))) {
+			LOG.warn("Gave up waiting for {} Coalmine deliveries to finish", getInFlightCount());
+		}
+		super.stop();
+	}
+	
+	/**
+	 * Wait for deliveries in flight, and summaries of aggregated repeats, to
+	 * finish.
+	 * 
+	 * @param timeout Maximum milliseconds to wait
+	 * @return True if every delivery finished in time
+	 */
+	@Override
+	public boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		super.flush(timeout);
+		return awaitDeliveries(Math.max(0, deadline - System.currentTimeMillis()));
+	}
+	
+	/**
+	 * Wait until no delivery is in flight by taking every permit.
+	 */
+	private boolean awaitDeliveries(long timeout) {
+		try {
+			if (permits.tryAcquire(maxConcurrency, timeout, TimeUnit.MILLISECONDS)) {
+				permits.release(maxConcurrency);
+				return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+	
+	/**
+	 * @return The number of deliveries currently in flight
+	 */
+	public int getInFlightCount() {
+		return maxConcurrency - permits.availablePermits();
+	}
+	
+	/**
+	 * @return The number of deliveries in flight, which for this connector
+	 *         are the notifications waiting to be sent
+	 */
+	@Override
+	public int getQueueSize() {
+		return getInFlightCount();
+	}
+	
+	/**
+	 * @return The number of notifications skipped because too many deliveries were in flight
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+	
+	/**
+	 * Warn about notifications dropped since the last warning, at most once
+	 * per DROP_REPORT_INTERVAL.
+	 */
+	private void reportDropped() {
+		long now = System.currentTimeMillis();
+		if (now - lastDropReport < DROP_REPORT_INTERVAL) {
+			return;
+		}
+		
+		long skipped;
+		synchronized (this) {
+			long total = dropped.get();
+			skipped = total - reportedDropped;
+			if (skipped == 0 || now - lastDropReport < DROP_REPORT_INTERVAL) {
+				return;
+			}
+			reportedDropped = total;
+			lastDropReport = now;
+		}
+		
+		LOG.warn("Too many Coalmine deliveries in flight, skipped {} notification(s) (Increase max concurrency to track all notifications)", skipped);
+	}
+}
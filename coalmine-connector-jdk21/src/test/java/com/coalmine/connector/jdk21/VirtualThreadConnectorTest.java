@@ -0,0 +1,133 @@
+package com.coalmine.connector.jdk21;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.coalmine.connector.OccurrenceAggregator;
+import com.coalmine.connector.notification.LoggedNotification;
+import com.sun.net.httpserver.HttpServer;
+
+public class VirtualThreadConnectorTest {
+	
+	protected HttpServer server;
+	
+	protected VirtualThreadConnector connector;
+	
+	protected final CountDownLatch release = new CountDownLatch(1);
+	
+	protected final AtomicInteger received = new AtomicInteger();
+	
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/notify", exchange -> {
+			InputStream in = exchange.getRequestBody();
+			while (in.read() != -1) {
+				// drain
+			}
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			received.incrementAndGet();
+			exchange.sendResponseHeaders(200, -1);
+			OutputStream out = exchange.getResponseBody();
+			out.close();
+		});
+		server.start();
+	}
+	
+	@After
+	public void tearDown() {
+		release.countDown();
+		if (connector != null) {
+			connector.stop();
+		}
+		server.stop(0);
+	}
+	
+	@Test
+	public void testDeliveriesAreCappedAndCompleted() throws InterruptedException {
+		connector = new VirtualThreadConnector("AtestSignature", 2);
+		connector.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/notify");
+		connector.start();
+		
+		assertTrue(connector.send(new LoggedNotification()));
+		assertTrue(connector.send(new LoggedNotification()));
+		assertFalse(connector.send(new LoggedNotification()));
+		assertEquals(1, connector.getDroppedCount());
+		assertEquals(2, connector.getInFlightCount());
+		
+		release.countDown();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (connector.getInFlightCount() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		assertEquals(2, received.get());
+		assertEquals(0, connector.getInFlightCount());
+	}
+	
+	@Test
+	public void testFlushWaitsForDeliveriesInFlight() {
+		connector = new VirtualThreadConnector("AtestSignature", 2);
+		connector.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/notify");
+		connector.start();
+		
+		assertTrue(connector.send(new LoggedNotification()));
+		assertFalse(connector.flush(50));
+		
+		release.countDown();
+		assertTrue(connector.flush(10000));
+		assertEquals(1, received.get());
+		assertEquals(0, connector.getInFlightCount());
+	}
+	
+	@Test
+	public void testStopKeepsToItsDeadline() {
+		connector = new VirtualThreadConnector("AtestSignature", 2);
+		connector.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/notify");
+		connector.start();
+		
+		assertTrue(connector.send(new LoggedNotification()));
+		long started = System.currentTimeMillis();
+		connector.stop(200);
+		connector = null;
+		
+		assertTrue(System.currentTimeMillis() - started < 2000);
+	}
+	
+	@Test
+	public void testStopSendsAggregatedSummaries() {
+		release.countDown();
+		connector = new VirtualThreadConnector("AtestSignature", 2);
+		connector.setUrl("http://127.0.0.1:" + server.getAddress().getPort() + "/notify");
+		connector.setAggregator(new OccurrenceAggregator());
+		connector.start();
+		
+		Exception ex = new IllegalStateException("Repeated");
+		for (int i = 0; i < 3; i++) {
+			connector.send(new LoggedNotification(ex));
+		}
+		connector.stop();
+		connector = null;
+		
+		assertEquals(2, received.get());
+	}
+}
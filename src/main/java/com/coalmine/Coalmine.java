@@ -1,5 +1,7 @@
 package com.coalmine;
 
+import com.coalmine.connector.notification.LocalHostname;
+
 public class Coalmine {
 
 	protected static String signature;
@@ -31,4 +33,12 @@ public class Coalmine {
 	public static final String getVersion() {
 		return version;
 	}
+	
+	/**
+	 * Report this hostname on notifications instead of looking up the name of
+	 * the local machine.
+	 */
+	public static final void setHostname(String hostname) {
+		LocalHostname.setOverride(hostname);
+	}
 }
@@ -7,6 +7,7 @@ import org.slf4j.LoggerFactory;
 
 import com.coalmine.connector.Connector;
 import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.notification.NotificationGson;
 import com.google.gson.Gson;
 
 /**
@@ -29,7 +30,7 @@ public class CoalmineUncaughtExceptionHandler implements UncaughtExceptionHandle
 	 * @param connector The connector responsible for sending notifications.
 	 */
 	public CoalmineUncaughtExceptionHandler(Connector connector) {
-		this(connector, new Gson());
+		this(connector, NotificationGson.get());
 	}
 	
 	/**
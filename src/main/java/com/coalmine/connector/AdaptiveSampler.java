@@ -0,0 +1,195 @@
+package com.coalmine.connector;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.coalmine.connector.notification.Severity;
+
+/**
+ * Decides which events become notifications when the application logs more
+ * than is worth sending. Each severity has a base sample rate, 1.0 (keep
+ * everything) by default. ERROR events are always kept.
+ *
+ * Under load the rates tighten. Load is the higher of the connector's own
+ * measure (for NoneBlockingConnector and CoalmineAppender, how full the
+ * queue is) and the event volume relative to the target rate per second.
+ * Above the low watermark,
+ * WARN rates are scaled down in proportion to the load, and INFO, DEBUG and
+ * TRACE rates with the square of it, down to the minimum factor at full load.
+ *
+ * The rate applied to a kept event is put on its notification as sample_rate,
+ * so counts can be scaled back up by 1 / sample_rate.
+ *
+ * Install a sampler with Connector.setSampler().
+ */
+public class AdaptiveSampler {
+	
+	/** Default number of events per second considered full load. */
+	public static final int DEFAULT_TARGET_RATE = 100;
+	
+	/** Load below which rates are not tightened. */
+	public static final double DEFAULT_LOW_WATERMARK = 0.5;
+	
+	/** Smallest fraction of the base rate applied at full load. */
+	public static final double DEFAULT_MIN_FACTOR = 0.01;
+	
+	private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+		@Override
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+	
+	private final Map<Severity, Double> rates = new EnumMap<Severity, Double>(Severity.class);
+	
+	private int targetRate = DEFAULT_TARGET_RATE;
+	
+	private double lowWatermark = DEFAULT_LOW_WATERMARK;
+	
+	private double minFactor = DEFAULT_MIN_FACTOR;
+	
+	/** Second (epoch) of the current counting window. */
+	private final AtomicLong window = new AtomicLong();
+	
+	/** Events seen in the current window. */
+	private final AtomicInteger windowCount = new AtomicInteger();
+	
+	/** Events seen in the previous window. */
+	private volatile int previousCount;
+	
+	public AdaptiveSampler() {
+		for (Severity severity : Severity.values()) {
+			rates.put(severity, 1.0);
+		}
+	}
+	
+	/**
+	 * Decide whether to keep an event.
+	 *
+	 * @param severity Severity of the event
+	 * @param connectorLoad Load reported by the connector, from 0 to 1
+	 * @return The sample rate the event was kept at, or 0 if it should be dropped
+	 */
+	public double sample(Severity severity, double connectorLoad) {
+		double volumeLoad = countEvent();
+		if (severity == Severity.ERROR) {
+			return 1.0;
+		}
+		
+		double rate = getRate(severity, Math.max(connectorLoad, volumeLoad));
+		if (rate >= 1.0) {
+			return 1.0;
+		}
+		return RANDOM.get().nextDouble() < rate ? rate : 0;
+	}
+	
+	/**
+	 * @param severity Severity of an event
+	 * @param load Current load, from 0 to 1
+	 * @return The sample rate applied to the severity at that load
+	 */
+	public double getRate(Severity severity, double load) {
+		if (severity == Severity.ERROR) {
+			return 1.0;
+		}
+		
+		double rate = rates.get(severity);
+		if (load <= lowWatermark) {
+			return rate;
+		}
+		
+		double pressure = Math.min(1.0, (load - lowWatermark) / (1.0 - lowWatermark));
+		double factor = 1.0 - pressure * (1.0 - minFactor);
+		if (severity != Severity.WARN) {
+			factor *= factor;
+		}
+		return rate * factor;
+	}
+	
+	/**
+	 * Set the base sample rate for a severity. Has no effect for ERROR.
+	 *
+	 * @param severity The severity
+	 * @param rate Fraction of events to keep, from 0 to 1
+	 */
+	public void setRate(Severity severity, double rate) {
+		if (rate < 0 || rate > 1) {
+			throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+		}
+		
+		rates.put(severity, rate);
+	}
+	
+	/**
+	 * Set base sample rates from a comma separated list such as
+	 * "WARN=0.5,INFO=0.1". Convenient for logging configuration files.
+	 *
+	 * @param spec The rates
+	 */
+	public void setRates(String spec) {
+		for (String entry : spec.split(",")) {
+			String[] parts = entry.split("=");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Invalid sample rate: " + entry);
+			}
+			setRate(Severity.valueOf(parts[0].trim().toUpperCase()), Double.parseDouble(parts[1].trim()));
+		}
+	}
+	
+	/**
+	 * @param targetRate Events per second considered full load, or 0 to
+	 *            ignore event volume. Defaults to 100.
+	 */
+	public void setTargetRate(int targetRate) {
+		if (targetRate < 0) {
+			throw new IllegalArgumentException("Target rate must not be negative");
+		}
+		
+		this.targetRate = targetRate;
+	}
+	
+	/**
+	 * @param lowWatermark Load below which rates are not tightened, from 0 to 1. Defaults to 0.5.
+	 */
+	public void setLowWatermark(double lowWatermark) {
+		if (lowWatermark < 0 || lowWatermark >= 1) {
+			throw new IllegalArgumentException("Low watermark must be at least 0 and below 1");
+		}
+		
+		this.lowWatermark = lowWatermark;
+	}
+	
+	/**
+	 * @param minFactor Smallest fraction of the base rate applied at full load. Defaults to 0.01.
+	 */
+	public void setMinFactor(double minFactor) {
+		if (minFactor <= 0 || minFactor > 1) {
+			throw new IllegalArgumentException("Min factor must be above 0 and at most 1");
+		}
+		
+		this.minFactor = minFactor;
+	}
+	
+	/**
+	 * Count an event in the current one second window.
+	 *
+	 * @return The event volume as a fraction of the target rate
+	 */
+	private double countEvent() {
+		long second = System.currentTimeMillis() / 1000;
+		long current = window.get();
+		if (second != current && window.compareAndSet(current, second)) {
+			int last = windowCount.getAndSet(0);
+			previousCount = second == current + 1 ? last : 0;
+		}
+		
+		int count = windowCount.incrementAndGet();
+		if (targetRate == 0) {
+			return 0;
+		}
+		return Math.max(count, previousCount) / (double) targetRate;
+	}
+}
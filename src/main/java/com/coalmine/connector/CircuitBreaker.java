@@ -0,0 +1,118 @@
+package com.coalmine.connector;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops connection attempts to Coalmine after repeated failures, so a dead
+ * endpoint does not cost every notification a full connect timeout.
+ *
+ * The breaker starts closed and lets every request through. After
+ * failureThreshold consecutive failures it opens and rejects requests for the
+ * open duration. Then it lets a single probe request through (half-open): if
+ * the probe succeeds the breaker closes again, otherwise it stays open for
+ * another open duration.
+ *
+ * All state is held in atomics, so checking the breaker never blocks.
+ */
+public class CircuitBreaker {
+	
+	/** Default number of consecutive failures that opens the breaker. */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	
+	/** Default time the breaker stays open before probing: 30 seconds. */
+	public static final long DEFAULT_OPEN_DURATION = 30000;
+	
+	private static final int CLOSED = 0;
+	private static final int OPEN = 1;
+	private static final int HALF_OPEN = 2;
+	
+	private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+	
+	private final int failureThreshold;
+	
+	private final long openDuration;
+	
+	private final AtomicInteger state = new AtomicInteger(CLOSED);
+	
+	private final AtomicInteger failures = new AtomicInteger();
+	
+	/** When the breaker last opened. Written before state is set to OPEN. */
+	private volatile long openedAt;
+	
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+	}
+	
+	/**
+	 * @param failureThreshold Consecutive failures that open the breaker
+	 * @param openDuration Milliseconds to stay open before probing
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("Failure threshold must be at least 1");
+		}
+		if (openDuration < 0) {
+			throw new IllegalArgumentException("Open duration must not be negative");
+		}
+		
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+	
+	/**
+	 * Ask to make a request. When the open duration has passed, exactly one
+	 * caller is let through as the half-open probe.
+	 *
+	 * @return True if the request may be made
+	 */
+	public boolean allowRequest() {
+		switch (state.get()) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			return System.currentTimeMillis() - openedAt >= openDuration
+					&& state.compareAndSet(OPEN, HALF_OPEN);
+		default:
+			// A probe is already in flight.
+			return false;
+		}
+	}
+	
+	/**
+	 * @return True if requests are currently being rejected. Unlike
+	 *         allowRequest(), this has no side effects, so it is cheap to call
+	 *         for every notification.
+	 */
+	public boolean isOpen() {
+		int current = state.get();
+		return (current == OPEN && System.currentTimeMillis() - openedAt < openDuration) || current == HALF_OPEN;
+	}
+	
+	public void recordSuccess() {
+		failures.set(0);
+		if (state.getAndSet(CLOSED) != CLOSED) {
+			LOG.info("Coalmine is reachable again, resuming notifications");
+		}
+	}
+	
+	public void recordFailure() {
+		if (state.get() == HALF_OPEN) {
+			open();
+			return;
+		}
+		
+		if (failures.incrementAndGet() >= failureThreshold && state.get() == CLOSED) {
+			open();
+		}
+	}
+	
+	private void open() {
+		openedAt = System.currentTimeMillis();
+		if (state.getAndSet(OPEN) == CLOSED) {
+			LOG.warn("Coalmine failed {} time(s) in a row, pausing notifications for {} ms", failures.get(), openDuration);
+		}
+	}
+}
@@ -3,7 +3,11 @@ package com.coalmine.connector;
 import java.util.HashSet;
 import java.util.Set;
 
+import com.coalmine.connector.metrics.ConnectorMetrics;
 import com.coalmine.connector.notification.Notification;
+import com.coalmine.connector.notification.Severity;
+import com.coalmine.connector.transport.PooledHttpTransport;
+import com.coalmine.connector.transport.Transport;
 
 /**
  * Responsible for sending notifications to the Coalmine service.
@@ -20,10 +24,31 @@ public abstract class Connector {
 	
 	static final int DEFAULT_TIMEOUT = 5000;
 	
+	static final int DEFAULT_READ_TIMEOUT = 5000;
+	
+	/** Default milliseconds stop() waits for pending notifications to be delivered. */
+	public static final long DEFAULT_SHUTDOWN_TIMEOUT = 5000;
+	
 	protected String url;
 	
+	/** Milliseconds to wait for a connection to Coalmine to be established. */
 	protected int timeout;
 	
+	/** Milliseconds to wait for Coalmine to respond once connected. */
+	protected int readTimeout;
+	
+	/** Responsible for the HTTP exchange with Coalmine. */
+	protected Transport transport;
+	
+	/** Collapses repeated notifications. Optional. */
+	protected OccurrenceAggregator aggregator;
+	
+	/** Drops a share of low severity events under load. Optional. */
+	protected AdaptiveSampler sampler;
+	
+	/** Counts what happens to notifications and times requests to Coalmine. */
+	protected final ConnectorMetrics metrics = new ConnectorMetrics(this);
+	
 	protected String signature;
 	
 	protected String applicationEnvironment = "Production";
@@ -34,6 +59,9 @@ public abstract class Connector {
 	
 	protected UserProvider userProvider;
 	
+	/** Stops this connector when the JVM exits. Guarded by this. */
+	private Thread shutdownHook;
+	
 	public Connector(String signature) {		
 		this(signature, DEFAULT_ENABLED_ENVIRONMENTS);
 	}
@@ -44,11 +72,81 @@ public abstract class Connector {
 		
 		setUrl(DEFAULT_API_URL);
 		setTimeout(DEFAULT_TIMEOUT);
+		setReadTimeout(DEFAULT_READ_TIMEOUT);
+		setTransport(new PooledHttpTransport());
 	}
 	
 	public abstract void start();
+	
+	/**
+	 * Stop the connector and release its resources. Notifications that have
+	 * not been delivered by the time stop() returns are lost.
+	 */
 	public abstract void stop();
 	
+	/**
+	 * Deliver pending notifications, waiting at most the given time, then
+	 * stop the connector.
+	 * 
+	 * @param timeout Maximum milliseconds to wait for pending notifications
+	 */
+	public void stop(long timeout) {
+		flush(timeout);
+		stop();
+	}
+	
+	/**
+	 * Deliver pending notifications, including summaries of aggregated
+	 * repeats, waiting at most the given time.
+	 * 
+	 * @param timeout Maximum milliseconds to wait
+	 * @return True if everything pending was delivered in time
+	 */
+	public boolean flush(long timeout) {
+		if (aggregator != null) {
+			aggregator.flush(this);
+		}
+		return true;
+	}
+	
+	/**
+	 * Stop this connector with stop(timeout) when the JVM shuts down. The hook
+	 * is removed again when the connector is stopped.
+	 * 
+	 * @param timeout Maximum milliseconds to wait for pending notifications at shutdown
+	 */
+	public synchronized void registerShutdownHook(final long timeout) {
+		if (shutdownHook != null) {
+			return;
+		}
+		
+		shutdownHook = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				stop(timeout);
+			}
+		}, "coalmine-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+	
+	/**
+	 * Remove the shutdown hook, if one was registered. Called by stop() so a
+	 * stopped connector is not kept alive, e.g. across web application
+	 * redeploys.
+	 */
+	protected synchronized void removeShutdownHook() {
+		if (shutdownHook == null || shutdownHook == Thread.currentThread()) {
+			return;
+		}
+		
+		try {
+			Runtime.getRuntime().removeShutdownHook(shutdownHook);
+		} catch (IllegalStateException e) {
+			// The JVM is already shutting down.
+		}
+		shutdownHook = null;
+	}
+	
 	public abstract boolean send(Notification notification);
 	
 	public void addEnabledEnvironment(String env) {
@@ -79,6 +177,95 @@ public abstract class Connector {
 		this.timeout = timeout;
 	}
 	
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	/**
+	 * Replace the transport used to talk to Coalmine. Defaults to a
+	 * PooledHttpTransport which keeps connections open between notifications.
+	 * It opens raw sockets, so in containers that restrict them, such as
+	 * Google App Engine, use a UrlConnectionTransport instead; the GAE filter
+	 * and handlers do.
+	 * 
+	 * @param transport The transport to use
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+	
+	public Transport getTransport() {
+		return transport;
+	}
+	
+	/**
+	 * Aggregate repeats of the same problem instead of sending each one. Must
+	 * be called before start().
+	 * 
+	 * @param aggregator The aggregator to use, or null to send every notification
+	 */
+	public void setAggregator(OccurrenceAggregator aggregator) {
+		this.aggregator = aggregator;
+	}
+	
+	public OccurrenceAggregator getAggregator() {
+		return aggregator;
+	}
+	
+	/**
+	 * Sample events by severity, dropping more of the less severe ones as
+	 * load rises. Loggers consult the sampler through sample() before
+	 * building a notification.
+	 * 
+	 * @param sampler The sampler to use, or null to keep every event
+	 */
+	public void setSampler(AdaptiveSampler sampler) {
+		this.sampler = sampler;
+	}
+	
+	public AdaptiveSampler getSampler() {
+		return sampler;
+	}
+	
+	/**
+	 * Decide whether an event should become a notification. Call this before
+	 * building the notification, and pass a non-zero result to
+	 * Notification.setSampleRate().
+	 * 
+	 * @param severity Severity of the event
+	 * @return The rate the event was kept at, or 0 if it should be dropped
+	 */
+	public double sample(Severity severity) {
+		if (sampler == null) {
+			return 1.0;
+		}
+		
+		return sampler.sample(severity, getLoad());
+	}
+	
+	/**
+	 * @return How busy this connector is, from 0 (idle) to 1 (saturated)
+	 */
+	protected double getLoad() {
+		return 0;
+	}
+	
+	/**
+	 * @return The number of notifications waiting to be sent. Always 0 for
+	 *         connectors that send on the caller's thread.
+	 */
+	public int getQueueSize() {
+		return 0;
+	}
+	
+	/**
+	 * @return Counts of what happened to notifications, and request latencies.
+	 *         Use getMetrics().register(name) to expose them through JMX.
+	 */
+	public ConnectorMetrics getMetrics() {
+		return metrics;
+	}
+	
 	public void setApplicationEnvironment(String environment) {
 		this.applicationEnvironment = environment;
 	}
@@ -87,6 +274,15 @@ public abstract class Connector {
 		this.version = version;
 	}
 	
+	/**
+	 * Record the notification with the aggregator, if there is one.
+	 * 
+	 * @return True if the notification repeats a recent one and should not be sent now
+	 */
+	protected boolean isRepeat(Notification notification) {
+		return aggregator != null && !aggregator.record(notification);
+	}
+	
 	protected boolean isSendable(Notification notification) {
 		return enabledEnvironments.contains(applicationEnvironment.toLowerCase());
 	}
@@ -0,0 +1,112 @@
+package com.coalmine.connector;
+
+import java.io.Writer;
+
+/**
+ * Writes characters into a PayloadBuffer as an application/x-www-form-urlencoded
+ * value, encoding them as UTF-8 on the fly. This produces the same output as
+ * URLEncoder.encode(value, "UTF-8") without building the value as a String
+ * first.
+ */
+final class FormEncodingWriter extends Writer {
+	
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+	
+	private final PayloadBuffer out;
+	
+	/** A high surrogate waiting for its low surrogate, or 0. */
+	private char pendingHighSurrogate;
+	
+	FormEncodingWriter(PayloadBuffer out) {
+		this.out = out;
+	}
+	
+	@Override
+	public void write(int c) {
+		writeChar((char) c);
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			writeChar(cbuf[i]);
+		}
+	}
+	
+	@Override
+	public void write(String str, int off, int len) {
+		for (int i = off; i < off + len; i++) {
+			writeChar(str.charAt(i));
+		}
+	}
+	
+	@Override
+	public Writer append(CharSequence csq) {
+		String str = String.valueOf(csq);
+		write(str, 0, str.length());
+		return this;
+	}
+	
+	@Override
+	public void flush() {
+		if (pendingHighSurrogate != 0) {
+			// Unpaired surrogate; URLEncoder substitutes '?'
+			pendingHighSurrogate = 0;
+			writeChar('?');
+		}
+	}
+	
+	@Override
+	public void close() {
+		flush();
+	}
+	
+	private void writeChar(char c) {
+		if (pendingHighSurrogate != 0) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				writeCodePoint(Character.toCodePoint(high, c));
+				return;
+			}
+			writeChar('?');
+		}
+		
+		if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+				|| c == '.' || c == '-' || c == '*' || c == '_') {
+			out.write(c);
+		} else if (c == ' ') {
+			out.write('+');
+		} else if (Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			writeChar('?');
+		} else {
+			writeCodePoint(c);
+		}
+	}
+	
+	private void writeCodePoint(int codePoint) {
+		if (codePoint < 0x80) {
+			writeEscaped(codePoint);
+		} else if (codePoint < 0x800) {
+			writeEscaped(0xC0 | (codePoint >> 6));
+			writeEscaped(0x80 | (codePoint & 0x3F));
+		} else if (codePoint < 0x10000) {
+			writeEscaped(0xE0 | (codePoint >> 12));
+			writeEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+			writeEscaped(0x80 | (codePoint & 0x3F));
+		} else {
+			writeEscaped(0xF0 | (codePoint >> 18));
+			writeEscaped(0x80 | ((codePoint >> 12) & 0x3F));
+			writeEscaped(0x80 | ((codePoint >> 6) & 0x3F));
+			writeEscaped(0x80 | (codePoint & 0x3F));
+		}
+	}
+	
+	private void writeEscaped(int b) {
+		out.write('%');
+		out.write(HEX[(b >> 4) & 0xF]);
+		out.write(HEX[b & 0xF]);
+	}
+}
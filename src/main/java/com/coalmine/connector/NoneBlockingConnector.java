@@ -1,82 +1,548 @@
 package com.coalmine.connector;
 
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.coalmine.connector.notification.LocalHostname;
 import com.coalmine.connector.notification.Notification;
+import com.coalmine.connector.queue.BlockingWaitStrategy;
+import com.coalmine.connector.queue.MpscRingBuffer;
+import com.coalmine.connector.queue.WaitStrategy;
 
 /**
  * Non Blocking implementation of the Connector which extends the SimpleConnector. The implementation has a fixed notification capacity of 128 by default. 
  * When the capacity is reached it will drop all exceeding notifications
  * 
+ * Notifications can optionally be delivered in batches. With a batch size
+ * greater than one, the worker collects up to that many notifications, waiting
+ * at most the batch linger time for more to arrive, and sends them to Coalmine
+ * in a single request.
+ * 
+ * Notifications are queued in a lock-free ring buffer, so application threads
+ * calling send() never contend on a lock. Notifications that do not fit are
+ * counted and reported in a periodic warning rather than one by one. How the
+ * worker waits for notifications is controlled by a WaitStrategy.
+ * 
+ * Delivery can be spread over several worker threads so that one slow request
+ * does not hold up the whole queue. Workers take turns claiming notifications
+ * from the queue and each sends one request at a time, so at most as many
+ * requests are in flight as there are workers. setMaxClaimPerWorker() limits
+ * how many notifications a worker claims for one request, leaving the rest of
+ * a burst to the other workers. When using more workers than the transport
+ * keeps idle connections, consider a larger PooledHttpTransport.
+ * 
+ * With a Journal installed, notifications that do not fit in the queue, or
+ * arrive while Coalmine is unreachable, are handed to the workers to be
+ * journaled and replayed later instead of being dropped. Application threads
+ * never write to the journal themselves; if the workers fall behind and the
+ * handoff fills up too, notifications are dropped.
+ * 
+ * stop() gives the workers up to DEFAULT_SHUTDOWN_TIMEOUT to deliver what is
+ * queued; use stop(timeout) for a different deadline, and flush(timeout) to
+ * wait for the queue to empty without stopping. Notifications still queued
+ * at the deadline are journaled if possible, otherwise counted as dropped.
+ * Workers still busy at the deadline are interrupted, and the journal and
+ * transport are closed once the last of them has exited.
+ * Workers are daemon threads, so call stop(), or registerShutdownHook(), to
+ * deliver the backlog when the JVM exits.
  */
 public class NoneBlockingConnector extends SimpleConnector {
 	
 	private static final int DEFAULT_QUEUE_CAPACITY = 128;
+	private static final int DEFAULT_BATCH_SIZE = 1;
+	private static final int DEFAULT_WORKERS = 1;
+	private static final long DEFAULT_BATCH_LINGER = 0;
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long DROP_REPORT_INTERVAL = 60000;
+	private static final long FLUSH_POLL_INTERVAL = 10;
+	private static final long DEFAULT_RATE_LIMIT_WAIT = 1000;
 	private static final Logger LOG = LoggerFactory.getLogger(NoneBlockingConnector.class);
 	
-	private final ArrayBlockingQueue<Notification> notificationQueue;
-	private final NoneBlockingConnectorThread noneBlockingConnectorThread;
+	private final MpscRingBuffer<Notification> notificationQueue;
+	
+	/** Notifications waiting for a worker to write them to the journal. */
+	private final MpscRingBuffer<Notification> spillQueue;
+	private final List<NoneBlockingConnectorThread> workers = new CopyOnWriteArrayList<NoneBlockingConnectorThread>();
+	
+	/**
+	 * The ring buffer has a single consumer, so workers take this lock while
+	 * claiming notifications. It is never held while sending or waiting.
+	 */
+	private final ReentrantLock claimLock = new ReentrantLock();
+	
+	/** Number of notifications queued or claimed by a worker and not yet delivered. */
+	private final AtomicInteger pending = new AtomicInteger();
+	
+	/** Set once stop() begins shutting the workers down. */
+	private volatile boolean stopped;
+	
+	/** Number of worker threads that have not exited yet. */
+	private final AtomicInteger runningWorkers = new AtomicInteger();
+	
+	/** Set by stop() when the journal and transport remain to be closed. */
+	private final AtomicBoolean closePending = new AtomicBoolean();
+	
+	/** Dropped count at the time of the last warning. Guarded by this. */
+	private long reportedDropped;
+	
+	private volatile long lastDropReport;
+	
+	/** Number of worker threads delivering notifications. */
+	private int workerCount = DEFAULT_WORKERS;
+	
+	/** Maximum number of notifications a single worker may claim at once. */
+	private int maxClaimPerWorker = Integer.MAX_VALUE;
+	
+	/** Maximum number of notifications sent in one request. */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	
+	/** Milliseconds to wait for a batch to fill up before sending it. */
+	private long batchLinger = DEFAULT_BATCH_LINGER;
 	
 	public NoneBlockingConnector(String signature) {
 		this(signature, DEFAULT_QUEUE_CAPACITY);
 	}
 	
 	public NoneBlockingConnector(String signature, Integer queueCapacity) {
+		this(signature, queueCapacity, new BlockingWaitStrategy());
+	}
+	
+	/**
+	 * @param signature The application's Coalmine signature
+	 * @param queueCapacity Maximum number of queued notifications, rounded up to a power of two
+	 * @param waitStrategy How the worker waits for notifications to arrive
+	 */
+	public NoneBlockingConnector(String signature, Integer queueCapacity, WaitStrategy waitStrategy) {
 		super(signature);
-		notificationQueue = new ArrayBlockingQueue<Notification>(queueCapacity);
-		noneBlockingConnectorThread = new NoneBlockingConnectorThread();
+		notificationQueue = new MpscRingBuffer<Notification>(queueCapacity, waitStrategy);
+		// Shares the wait strategy so that idle workers wake up for spills too.
+		spillQueue = new MpscRingBuffer<Notification>(queueCapacity, waitStrategy);
+		setRetryPolicy(new RetryPolicy());
+		setRateLimitWait(DEFAULT_RATE_LIMIT_WAIT);
 	}
 	
 	@Override
 	public boolean send(Notification notification) {
-		try {
-			return notificationQueue.add(notification);			
-		} catch(IllegalStateException e) {
-			LOG.warn("Notification queue is overflowing, skipping incoming notification (Increase queue capacity to track all notifications)");
+		if (isRepeat(notification)) {
+			return true;
+		}
+		
+		if (stopped) {
+			metrics.recordDropped(1);
+			return false;
+		}
+		
+		// Reject cheaply rather than queue notifications that cannot be sent.
+		if (circuitBreaker != null && circuitBreaker.isOpen()) {
+			metrics.recordThrottled(1);
+			handOff(notification);
 			return false;
 		}
+		
+		// Counted before it is queued so flush() never sees it as delivered early.
+		pending.incrementAndGet();
+		if (!notificationQueue.offer(notification)) {
+			pending.decrementAndGet();
+			return handOff(notification);
+		}
+		
+		metrics.recordEnqueued();
+		return true;
 	}
 		
 	@Override
 	public void start() {
-		noneBlockingConnectorThread.start();
+		LocalHostname.resolveAsync();
+		stopped = false;
+		closePending.set(false);
+		for (int i = 0; i < workerCount; i++) {
+			NoneBlockingConnectorThread worker = new NoneBlockingConnectorThread();
+			worker.setName("coalmine-dispatch-" + i);
+			worker.setDaemon(true);
+			workers.add(worker);
+			runningWorkers.incrementAndGet();
+			worker.start();
+		}
+		if (aggregator != null) {
+			aggregator.start(this);
+		}
+		if (journal != null) {
+			journal.start(this);
+		}
 	}
 	
+	/**
+	 * Stop the connector, giving the workers up to DEFAULT_SHUTDOWN_TIMEOUT
+	 * to deliver queued notifications.
+	 */
 	@Override
 	public void stop() {
-		noneBlockingConnectorThread.interrupt();
+		stop(DEFAULT_SHUTDOWN_TIMEOUT);
 	}
 	
-	private boolean sendInternal(Notification notification) {
-		return super.send(notification);
+	/**
+	 * Stop the connector. Queued notifications, and summaries of aggregated
+	 * repeats, are delivered until the deadline; whatever is left is journaled
+	 * or dropped.
+	 * 
+	 * @param timeout Maximum milliseconds to wait for the backlog to be delivered
+	 */
+	@Override
+	public void stop(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		if (aggregator != null) {
+			aggregator.stop(this);
+		}
+		awaitDelivered(deadline);
+		
+		stopped = true;
+		for (NoneBlockingConnectorThread worker : workers) {
+			worker.shutdown();
+		}
+		int interrupted = 0;
+		for (NoneBlockingConnectorThread worker : workers) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				if (remaining > 0) {
+					worker.join(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (worker.isAlive()) {
+				worker.interrupt();
+				interrupted++;
+			}
+		}
+		workers.clear();
+		if (interrupted > 0) {
+			LOG.warn("Interrupted {} Coalmine worker(s) still sending at the stop deadline", interrupted);
+		}
+		writeSpills(new ArrayList<Notification>());
+		
+		List<Notification> leftover = new ArrayList<Notification>();
+		claim(leftover, Integer.MAX_VALUE);
+		pending.addAndGet(-leftover.size());
+		int lost = 0;
+		for (Notification notification : leftover) {
+			if (!spill(notification)) {
+				lost++;
+			}
+		}
+		if (lost > 0) {
+			metrics.recordDropped(lost);
+			LOG.warn("Stopped before {} queued notification(s) could be sent to Coalmine", lost);
+		}
+		
+		removeShutdownHook();
+		metrics.unregister();
+		
+		// Workers still running close the journal and transport as the last one exits.
+		closePending.set(true);
+		if (runningWorkers.get() == 0) {
+			closeResources();
+		}
+	}
+	
+	/**
+	 * Close the journal and transport, once, after stop() and every worker
+	 * are done with them.
+	 */
+	private void closeResources() {
+		if (!closePending.compareAndSet(true, false)) {
+			return;
+		}
+		
+		if (journal != null) {
+			journal.stop();
+		}
+		transport.close();
+	}
+	
+	/**
+	 * Wait for every queued notification, and summaries of aggregated
+	 * repeats, to be delivered.
+	 * 
+	 * @param timeout Maximum milliseconds to wait
+	 * @return True if the queue was emptied in time
+	 */
+	@Override
+	public boolean flush(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		super.flush(timeout);
+		return awaitDelivered(deadline);
+	}
+	
+	private boolean awaitDelivered(long deadline) {
+		while (pending.get() > 0) {
+			if (workers.isEmpty() || System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(FLUSH_POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Set the maximum number of notifications sent to Coalmine in one request.
+	 * Must be called before start().
+	 *
+	 * @param batchSize The maximum batch size. Defaults to 1 (no batching).
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Set how long the worker waits for a batch to fill up before sending
+	 * what it has. Must be called before start().
+	 *
+	 * @param batchLinger The linger time in milliseconds. Defaults to 0.
+	 */
+	public void setBatchLinger(long batchLinger) {
+		if (batchLinger < 0) {
+			throw new IllegalArgumentException("Batch linger must not be negative");
+		}
+		
+		this.batchLinger = batchLinger;
+	}
+	
+	/**
+	 * Set the number of worker threads delivering notifications. Must be
+	 * called before start().
+	 * 
+	 * @param workerCount The number of workers. Defaults to 1.
+	 */
+	public void setWorkers(int workerCount) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("There must be at least 1 worker");
+		}
+		
+		this.workerCount = workerCount;
+	}
+	
+	/**
+	 * Limit the number of notifications a single worker claims from the queue
+	 * for one request, leaving the rest for other workers. Since a worker sends
+	 * one request at a time, this caps the batch size; it does not limit the
+	 * number of requests. Must be called before start().
+	 * 
+	 * @param maxClaimPerWorker The limit. Unlimited by default.
+	 */
+	public void setMaxClaimPerWorker(int maxClaimPerWorker) {
+		if (maxClaimPerWorker < 1) {
+			throw new IllegalArgumentException("Max claim per worker must be at least 1");
+		}
+		
+		this.maxClaimPerWorker = maxClaimPerWorker;
+	}
+	
+	/**
+	 * @return The number of notifications claimed by workers and not yet delivered
+	 */
+	public int getInFlightCount() {
+		int inFlight = 0;
+		for (NoneBlockingConnectorThread worker : workers) {
+			inFlight += worker.inFlight;
+		}
+		return inFlight;
+	}
+	
+	/**
+	 * @return The number of notifications dropped because the queue was full,
+	 *         the connector had stopped, or delivery failed with no journal
+	 *         to fall back on
+	 */
+	public long getDroppedCount() {
+		return metrics.getDropped();
+	}
+	
+	/**
+	 * @return An estimate of the number of notifications waiting to be sent
+	 */
+	@Override
+	public int getQueueSize() {
+		return notificationQueue.size();
+	}
+	
+	/**
+	 * @return How full the queue is
+	 */
+	@Override
+	protected double getLoad() {
+		return notificationQueue.size() / (double) notificationQueue.capacity();
+	}
+	
+	private boolean sendInternal(List<Notification> notifications) {
+		return super.sendBatch(notifications);
+	}
+	
+	/**
+	 * Move up to max queued notifications into the batch.
+	 */
+	private int claim(List<Notification> batch, int max) {
+		claimLock.lock();
+		try {
+			return notificationQueue.drainTo(batch, max);
+		} finally {
+			claimLock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue a notification for a worker to journal, or count it as dropped.
+	 * Called on application threads, so it must not touch the disk.
+	 */
+	private boolean handOff(Notification notification) {
+		if (journal != null && spillQueue.offer(notification)) {
+			return true;
+		}
+		metrics.recordDropped(1);
+		return false;
+	}
+	
+	/**
+	 * Journal the notifications handed off by application threads.
+	 */
+	private void writeSpills(List<Notification> spills) {
+		claimLock.lock();
+		try {
+			spillQueue.drainTo(spills, Integer.MAX_VALUE);
+		} finally {
+			claimLock.unlock();
+		}
+		
+		int lost = 0;
+		for (Notification notification : spills) {
+			if (!spill(notification)) {
+				lost++;
+			}
+		}
+		metrics.recordDropped(lost);
+		spills.clear();
+	}
+	
+	/**
+	 * Warn about notifications dropped since the last warning, at most once
+	 * per DROP_REPORT_INTERVAL.
+	 */
+	private void reportDropped() {
+		long now = System.currentTimeMillis();
+		if (now - lastDropReport < DROP_REPORT_INTERVAL) {
+			return;
+		}
+		
+		long skipped;
+		synchronized (this) {
+			long total = metrics.getDropped();
+			skipped = total - reportedDropped;
+			if (skipped == 0 || now - lastDropReport < DROP_REPORT_INTERVAL) {
+				return;
+			}
+			reportedDropped = total;
+			lastDropReport = now;
+		}
+		
+		LOG.warn("Dropped {} notification(s) that could not be queued or delivered (Increase queue capacity if the queue is overflowing)", skipped);
 	}
 	
 	private class NoneBlockingConnectorThread extends Thread {
 		
-		private boolean active = true;
+		private volatile boolean active = true;
+		
+		/** Number of notifications this worker has claimed and not yet delivered. */
+		private volatile int inFlight;
 		
 		@Override
 		public void run() {
+			int limit = Math.min(batchSize, maxClaimPerWorker);
+			try {
+				deliver(limit);
+			} finally {
+				if (runningWorkers.decrementAndGet() == 0) {
+					closeResources();
+				}
+			}
+		}
+		
+		private void deliver(int limit) {
+			List<Notification> batch = new ArrayList<Notification>(limit);
+			List<Notification> spills = new ArrayList<Notification>();
 			while(active) {
 				try {
-					Notification notification = notificationQueue.take();
+					if (!spillQueue.isEmpty()) {
+						writeSpills(spills);
+					}
+					
+					if (claim(batch, 1) == 0) {
+						notificationQueue.await(IDLE_WAIT_NANOS);
+						continue;
+					}
+					
+					fillBatch(batch, limit);
+					inFlight = batch.size();
 					
 			        try {
-			        	sendInternal(notification);		            
+			        	sendInternal(batch);
 			        } catch (Exception e) {
 			            // ignore
 			        }
 					
 				} catch (InterruptedException e) {
 					// ignore
+				} finally {
+					pending.addAndGet(-batch.size());
+					batch.clear();
+					inFlight = 0;
+					reportDropped();
+				}
+			}
+		}
+		
+		/**
+		 * Top up the batch with whatever is queued, waiting up to the linger
+		 * time for more notifications until the batch is full.
+		 */
+		private void fillBatch(List<Notification> batch, int limit) throws InterruptedException {
+			if (limit == 1) {
+				return;
+			}
+			
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+			while (true) {
+				inFlight += claim(batch, limit - batch.size());
+				long remaining = deadline - System.nanoTime();
+				if (batch.size() >= limit || remaining <= 0) {
+					return;
 				}
+				
+				notificationQueue.await(remaining);
 			}
 		}
 		
-		public void interrupt() {
+		/**
+		 * Finish the current delivery and exit. The thread is only interrupted
+		 * if it misses the stop deadline, since that would close journal and
+		 * transport channels mid-write.
+		 */
+		void shutdown() {
 			active = false;
 		}
 	}
@@ -0,0 +1,237 @@
+package com.coalmine.connector;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coalmine.connector.notification.Notification;
+
+/**
+ * Collapses repeats of the same problem into a single notification. The first
+ * notification with a given fingerprint is sent straight away and opens an
+ * aggregation window. Repeats inside the window are counted but not sent.
+ * When the window closes, the last repeat is sent with the number of
+ * occurrences and the first and last time they were seen.
+ *
+ * The fingerprint table holds at most maxFingerprints entries. When it is
+ * full, the least recently seen fingerprint is evicted and its pending count,
+ * if any, is sent early.
+ *
+ * Install an aggregator with Connector.setAggregator(). Summaries are flushed
+ * by a background thread that runs while the connector is started.
+ */
+public class OccurrenceAggregator {
+	
+	/** Default length of an aggregation window: one minute. */
+	public static final long DEFAULT_WINDOW = 60000;
+	
+	/** Default size of the fingerprint table. */
+	public static final int DEFAULT_MAX_FINGERPRINTS = 1000;
+	
+	private static final Logger LOG = LoggerFactory.getLogger(OccurrenceAggregator.class);
+	
+	private final long window;
+	
+	private final int maxFingerprints;
+	
+	/** Open windows by fingerprint, least recently seen first. Guarded by this. */
+	private final Map<String, Occurrences> table;
+	
+	/** Summaries waiting to be sent. Guarded by this. */
+	private final List<Notification> pending = new ArrayList<Notification>();
+	
+	private Thread flushThread;
+	
+	public OccurrenceAggregator() {
+		this(DEFAULT_WINDOW, DEFAULT_MAX_FINGERPRINTS);
+	}
+	
+	/**
+	 * @param window Length of an aggregation window in milliseconds
+	 * @param maxFingerprints Maximum number of fingerprints tracked at once
+	 */
+	public OccurrenceAggregator(long window, int maxFingerprints) {
+		if (window <= 0) {
+			throw new IllegalArgumentException("Window must be positive");
+		}
+		if (maxFingerprints < 1) {
+			throw new IllegalArgumentException("Max fingerprints must be at least 1");
+		}
+		
+		this.window = window;
+		this.maxFingerprints = maxFingerprints;
+		this.table = new LinkedHashMap<String, Occurrences>(16, 0.75f, true) {
+			
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Occurrences> eldest) {
+				if (size() <= OccurrenceAggregator.this.maxFingerprints) {
+					return false;
+				}
+				
+				addPending(eldest.getValue());
+				return true;
+			}
+		};
+	}
+	
+	/**
+	 * Record a notification.
+	 *
+	 * @param notification The notification about to be sent
+	 * @return True if the notification should be sent now, false if it was
+	 *         counted as a repeat and will be summarized later
+	 */
+	public boolean record(Notification notification) {
+		if (notification.isOccurrenceSummary()) {
+			return true;
+		}
+		
+		String fingerprint = notification.getFingerprint();
+		if (fingerprint == null) {
+			return true;
+		}
+		
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			Occurrences occurrences = table.get(fingerprint);
+			if (occurrences == null || now - occurrences.windowStart >= window) {
+				if (occurrences != null) {
+					addPending(occurrences);
+				}
+				table.put(fingerprint, new Occurrences(now));
+				return true;
+			}
+			
+			if (occurrences.repeats++ == 0) {
+				occurrences.firstRepeat = now;
+			}
+			occurrences.lastSeen = now;
+			occurrences.last = notification;
+			return false;
+		}
+	}
+	
+	/**
+	 * Close windows that have expired and collect their summaries.
+	 *
+	 * @param flushAll True to close every window regardless of age
+	 * @return Summary notifications to send
+	 */
+	public List<Notification> drain(boolean flushAll) {
+		long now = System.currentTimeMillis();
+		synchronized (this) {
+			for (Iterator<Occurrences> it = table.values().iterator(); it.hasNext();) {
+				Occurrences occurrences = it.next();
+				if (flushAll || now - occurrences.windowStart >= window) {
+					addPending(occurrences);
+					it.remove();
+				}
+			}
+			
+			if (pending.isEmpty()) {
+				return new ArrayList<Notification>(0);
+			}
+			
+			List<Notification> summaries = new ArrayList<Notification>(pending);
+			pending.clear();
+			return summaries;
+		}
+	}
+	
+	/**
+	 * Start flushing summaries to the connector in the background.
+	 */
+	public synchronized void start(final Connector connector) {
+		if (flushThread != null) {
+			return;
+		}
+		
+		flushThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long interval = Math.max(100, Math.min(window / 2, 1000));
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						break;
+					}
+					sendSummaries(connector, drain(false));
+				}
+			}
+		}, "coalmine-aggregator");
+		flushThread.setDaemon(true);
+		flushThread.start();
+	}
+	
+	/**
+	 * Stop the background thread and send every pending summary.
+	 */
+	public void stop(Connector connector) {
+		Thread thread;
+		synchronized (this) {
+			thread = flushThread;
+			flushThread = null;
+		}
+		
+		if (thread != null) {
+			thread.interrupt();
+		}
+		flush(connector);
+	}
+	
+	/**
+	 * Close every open window now and send the summaries.
+	 */
+	public void flush(Connector connector) {
+		sendSummaries(connector, drain(true));
+	}
+	
+	private void sendSummaries(Connector connector, List<Notification> summaries) {
+		for (Notification summary : summaries) {
+			try {
+				connector.send(summary);
+			} catch (RuntimeException e) {
+				LOG.error("Unable to send occurrence summary to Coalmine", e);
+			}
+		}
+	}
+	
+	/** Must be called while holding the lock. */
+	private void addPending(Occurrences occurrences) {
+		if (occurrences.repeats == 0) {
+			return;
+		}
+		
+		// The first occurrence was already sent, so the summary counts the repeats.
+		occurrences.last.setOccurrences(occurrences.repeats, occurrences.firstRepeat, occurrences.lastSeen);
+		occurrences.repeats = 0;
+		if (pending.size() >= maxFingerprints) {
+			pending.remove(0);
+		}
+		pending.add(occurrences.last);
+	}
+	
+	/**
+	 * Repeats seen for one fingerprint in the current window.
+	 */
+	private static class Occurrences {
+		
+		final long windowStart;
+		int repeats;
+		long firstRepeat;
+		long lastSeen;
+		Notification last;
+		
+		Occurrences(long windowStart) {
+			this.windowStart = windowStart;
+		}
+	}
+}
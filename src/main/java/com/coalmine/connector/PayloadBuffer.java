@@ -0,0 +1,80 @@
+package com.coalmine.connector;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that request bodies are serialized into. Unlike
+ * ByteArrayOutputStream it is unsynchronized and exposes its backing array,
+ * so a body can be handed to the transport without another copy. Buffers are
+ * pooled and reused between requests, by one request at a time.
+ */
+final class PayloadBuffer extends OutputStream {
+	
+	/** Buffers that grew past this are shrunk back when reset. */
+	private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+	
+	private static final int INITIAL_CAPACITY = 4096;
+	
+	private byte[] buf = new byte[INITIAL_CAPACITY];
+	
+	private int count;
+	
+	@Override
+	public void write(int b) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(count + len);
+		System.arraycopy(b, off, buf, count, len);
+		count += len;
+	}
+	
+	/**
+	 * Append a string that is known to only contain ASCII characters.
+	 */
+	void writeAscii(String s) {
+		int length = s.length();
+		ensureCapacity(count + length);
+		for (int i = 0; i < length; i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+	
+	/**
+	 * Make room for at least the given total number of bytes.
+	 */
+	void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+		}
+	}
+	
+	/**
+	 * @return The backing array. Only the first size() bytes are valid.
+	 */
+	byte[] array() {
+		return buf;
+	}
+	
+	int size() {
+		return count;
+	}
+	
+	void setSize(int size) {
+		count = size;
+	}
+	
+	/**
+	 * Empty the buffer, releasing memory if an unusually large body grew it.
+	 */
+	void reset() {
+		count = 0;
+		if (buf.length > MAX_RETAINED_CAPACITY) {
+			buf = new byte[INITIAL_CAPACITY];
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package com.coalmine.connector;
+
+import java.util.Random;
+
+/**
+ * How often, and how far apart, a failed delivery is retried. Retries back
+ * off exponentially from the initial backoff up to the maximum backoff. Each
+ * delay is randomized between half and all of its exponential value ("equal
+ * jitter"), so that many clients failing at once do not retry in lockstep.
+ *
+ * Only failures that may succeed later are retried: connection errors and
+ * 5xx responses. Throttling responses are honored through Retry-After instead.
+ */
+public class RetryPolicy {
+	
+	/** Default number of attempts, including the first. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+	
+	/** Default delay before the first retry, in milliseconds. */
+	public static final long DEFAULT_INITIAL_BACKOFF = 250;
+	
+	/** Default upper bound on the delay between retries, in milliseconds. */
+	public static final long DEFAULT_MAX_BACKOFF = 5000;
+	
+	private final int maxAttempts;
+	
+	private final long initialBackoff;
+	
+	private final long maxBackoff;
+	
+	private final Random random = new Random();
+	
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+	}
+	
+	/**
+	 * @param maxAttempts Number of attempts, including the first. 1 disables retries.
+	 * @param initialBackoff Delay before the first retry in milliseconds
+	 * @param maxBackoff Upper bound on the delay between retries in milliseconds
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("Max attempts must be at least 1");
+		}
+		if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+			throw new IllegalArgumentException("Backoff must satisfy 0 <= initial <= max");
+		}
+		
+		this.maxAttempts = maxAttempts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+	/**
+	 * @param attempt The attempt that just failed, starting at 1
+	 * @return Milliseconds to wait before the next attempt
+	 */
+	public long getBackoff(int attempt) {
+		long backoff = initialBackoff << Math.min(Math.max(attempt - 1, 0), 30);
+		if (backoff > maxBackoff || backoff < 0) {
+			backoff = maxBackoff;
+		}
+		
+		long half = backoff / 2;
+		return half + (long) (random.nextDouble() * (backoff - half));
+	}
+}
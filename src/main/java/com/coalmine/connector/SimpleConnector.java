@@ -1,18 +1,23 @@
 package com.coalmine.connector;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
-import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.coalmine.connector.journal.Journal;
+import com.coalmine.connector.notification.LocalHostname;
 import com.coalmine.connector.notification.Notification;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
 
 /**
  * The simplest implementation of a Coalmine Connector. This is the class 
@@ -21,17 +26,44 @@ import com.coalmine.connector.notification.Notification;
  * This connector honors rate throttling on the client side so that when a 
  * throttle event occurs, the client (this connector) will not send another 
  * message for the throttle period (value of Retry-After response header).
+ * A TokenBucket can also be installed to keep under Coalmine's rate limit in
+ * the first place.
+ * 
+ * With a Journal installed, notifications that could not be delivered because
+ * Coalmine was unreachable, throttling us or failing are written to disk and
+ * replayed later instead of being dropped.
+ * 
+ * Connection errors and 5xx responses are retried according to the
+ * RetryPolicy, if one is set. A CircuitBreaker stops requests altogether
+ * after repeated failures, so a dead endpoint does not cost every
+ * notification a full timeout; notifications are rejected straight away
+ * while it is open.
  */
 public class SimpleConnector extends Connector {
 	
-	/** The system time that we were last throttled. */
-	private Long lastThrottled;
+	/** Closed for the throttle period after Coalmine throttles us. */
+	private final ThrottleGate throttleGate = new ThrottleGate();
 	
-	/**
-	 * The number of seconds to wait (from lastThrottled) before sending another
-	 * message to Coalmine. 
-	 */
-	private int throttleTimeout;
+	/** Limits the rate at which notifications are sent. Optional. */
+	protected TokenBucket rateLimiter;
+	
+	/** Milliseconds to wait for the rate limiter before deferring a request. */
+	protected long rateLimitWait;
+	
+	/** Whether request bodies are gzip compressed. */
+	private boolean compression;
+	
+	/** Request bodies smaller than this many bytes are sent uncompressed. */
+	private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+	
+	/** Keeps notifications that could not be delivered. Optional. */
+	protected Journal journal;
+	
+	/** Retries failed requests. Optional; without it failures are not retried. */
+	protected RetryPolicy retryPolicy;
+	
+	/** Pauses requests while Coalmine keeps failing. Optional. */
+	protected CircuitBreaker circuitBreaker = new CircuitBreaker();
 	
 	/** Content type of the HTTP request. */
 	private static final String CONTENT_TYPE = "application/x-www-form-urlencoded";
@@ -48,126 +80,471 @@ public class SimpleConnector extends Connector {
 	 */
 	private static final int DEFAULT_THROTTLE_TIMEOUT = 60;
 	
+	/** The default body size, in bytes, from which compression kicks in. */
+	private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+	
+	/** Fixed gzip member header: magic, deflate, no flags, no mtime, unknown OS. */
+	private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+	
+	/**
+	 * Request bodies are serialized into pooled buffers that are reused from
+	 * one request to the next. A pool rather than a ThreadLocal keeps reuse
+	 * working when every delivery runs on a fresh (virtual) thread.
+	 */
+	private static final Queue<RequestBuffers> BUFFERS = new ConcurrentLinkedQueue<RequestBuffers>();
+	
+	/** Number of buffers sitting in the pool. */
+	private static final AtomicInteger POOLED_BUFFERS = new AtomicInteger();
+	
+	/** Maximum number of idle buffers kept in the pool. */
+	private static final int MAX_POOLED_BUFFERS = 16;
+	
 	public SimpleConnector(String signature) {
 		super(signature);
 	}
 	
 	@Override
 	public void start() {
-		
+		LocalHostname.resolveAsync();
+		if (aggregator != null) {
+			aggregator.start(this);
+		}
+		if (journal != null) {
+			journal.start(this);
+		}
 	}
 	
 	@Override
 	public void stop() {
-		
+		removeShutdownHook();
+		if (aggregator != null) {
+			aggregator.stop(this);
+		}
+		if (journal != null) {
+			journal.stop();
+		}
+		metrics.unregister();
+		transport.close();
 	}
 	
 	@Override
 	public boolean send(Notification notification) {
+		if (isRepeat(notification)) {
+			return true;
+		}
+		
+		metrics.recordEnqueued();
+		return sendBatch(Collections.singletonList(notification));
+	}
+		
+	/**
+	 * Send several notifications to Coalmine in a single request. The batch is
+	 * treated as a unit: if we are throttled, or Coalmine throttles the request,
+	 * every notification in the batch is dropped, or journaled if a journal is
+	 * installed.
+	 * 
+	 * @param notifications The notifications to send
+	 * @return True if the whole batch was accepted by Coalmine
+	 */
+	public boolean sendBatch(List<Notification> notifications) {
+		
+		if (notifications.isEmpty()) {
+			return true;
+		}
 		
-		if (!isSendable(notification)) {
+		if (!isSendable(notifications.get(0))) {
 			LOG.warn(
 				String.format("Coalmine notifications are disabled for the current environment (%s). Enable this environment via connector.addEnabledEnvironment(\"%s\");", 
 						applicationEnvironment, applicationEnvironment));
 			return false;
 		}
 		
+		if (circuitBreaker != null && circuitBreaker.isOpen()) {
+			metrics.recordThrottled(notifications.size());
+			spillOrDrop(notifications);
+			return false;
+		}
+		
+		Outcome outcome;
 		try {
-			return _send(notification);
+			outcome = count(_send(notifications), notifications.size());
 		} catch (RuntimeException e) {
 			LOG.error("Unable to send notification to Coalmine.", e);
+			metrics.recordFailed(notifications.size());
 			return false;
 		}
+		
+		if (outcome.isRetryable()) {
+			spillOrDrop(notifications);
+		}
+		return outcome == Outcome.DELIVERED;
 	}
 	
-	protected boolean isThrottled() {
-		if (lastThrottled == null) {
+	/**
+	 * Send notifications read back from the journal. Unlike sendBatch(),
+	 * failed notifications are not journaled again.
+	 * 
+	 * @param notifications The journaled notifications
+	 * @return True if the notifications are done with: delivered, or rejected
+	 *         by Coalmine in a way that retrying will not fix. False if they
+	 *         should be replayed later.
+	 */
+	public boolean redeliver(List<Notification> notifications) {
+		try {
+			return !count(_send(notifications), notifications.size()).isRetryable();
+		} catch (RuntimeException e) {
+			LOG.error("Unable to replay journaled notification to Coalmine.", e);
+			metrics.recordFailed(notifications.size());
+			return true;
+		}
+	}
+	
+	/**
+	 * Write a notification that could not be sent to the journal, if one is
+	 * installed.
+	 * 
+	 * @param notification The notification
+	 * @return True if the notification was journaled
+	 */
+	protected boolean spill(Notification notification) {
+		if (journal == null) {
 			return false;
 		}
 		
-		long diff = System.currentTimeMillis() - lastThrottled;
-		if (diff > throttleTimeout * 1000) {
-			lastThrottled = null;
+		prepare(notification);
+		if (!journal.append(notification)) {
 			return false;
 		}
-		
+		metrics.recordJournaled(1);
 		return true;
 	}
 	
-	private boolean _send(Notification notification) {
-		
-		if (isThrottled()) {
-			logThrottled();
-			return false;
+	private void spillOrDrop(List<Notification> notifications) {
+		int lost = 0;
+		for (Notification notification : notifications) {
+			if (!spill(notification)) {
+				lost++;
+			}
 		}
-		
+		metrics.recordDropped(lost);
+	}
+	
+	/**
+	 * Fill in the fields the connector sets on every notification it sends.
+	 */
+	protected void prepare(Notification notification) {
 		notification.setApplicationEnvironment(applicationEnvironment);
 		notification.setVersion(version);
 		if (getUserProvider() != null) {
 			notification.setUserId(getUserProvider().getUser());
 		}
+	}
+	
+	protected boolean isThrottled() {
+		return throttleGate.isThrottled();
+	}
+	
+	private Outcome _send(List<Notification> notifications) {
 		
-		URL url = null;
-		HttpURLConnection conn = null;
+		if (isThrottled()) {
+			logThrottled(notifications.size());
+			return Outcome.DEFERRED;
+		}
+		
+		if (rateLimiter != null) {
+			// A batch larger than the bucket takes the whole bucket.
+			int tokens = (int) Math.min(notifications.size(), rateLimiter.getCapacity());
+			if (!rateLimiter.tryAcquire(tokens, rateLimitWait, TimeUnit.MILLISECONDS)) {
+				LOG.debug("Client rate limit reached, not sending {} notification(s)", notifications.size());
+				return Outcome.DEFERRED;
+			}
+		}
+		
+		for (Notification notification : notifications) {
+			prepare(notification);
+		}
+		
+		RequestBuffers buffers = acquireBuffers();
 		try {
-			url = new URL(getUrl());
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setRequestProperty("Content-Type", CONTENT_TYPE);
-			conn.setUseCaches(false);
-			conn.setDoOutput(true); // Implicitly sets conn to POST
-			conn.setConnectTimeout(timeout);
+			PayloadBuffer body = buffers.body;
+			writeBody(notifications, body);
 			
-			Map<String, Object> params = notification.getQueryParams();
-			params.put("signature", signature);
-			StringBuilder queryBuilder = new StringBuilder();
-			for (String key : params.keySet()) {
-				queryBuilder.append(URLEncoder.encode(key, "UTF-8"));
-				queryBuilder.append("=");
-				if (params.get(key) != null) {
-					queryBuilder.append(URLEncoder.encode(params.get(key).toString(), "UTF-8"));
-				}
-				queryBuilder.append("&");
+			if (LOG.isDebugEnabled()) {
+				LOG.debug(String.format("Sending %d byte body to %s", body.size(), getUrl()));
 			}
-			
-			String query = queryBuilder.toString();
-			query = query.substring(0, query.length() - 1);
-			
-			LOG.debug(String.format("Sending %s to %s", query, getUrl()));
-			DataOutputStream writer = new DataOutputStream(conn.getOutputStream());
-			writer.writeBytes(query);
-			writer.flush ();
-			writer.close ();
-			
-			if (conn.getResponseCode() == 200) {
-				LOG.info("Successfully posted notification to Coalmine");
-				return true;
-			} else if (conn.getResponseCode() == 429) {
-				logThrottled();				
-				setTemporaryTimeout(conn.getHeaderField("Retry-After"));
-				return false;
+			TransportRequest request = new TransportRequest(getUrl(), CONTENT_TYPE);
+			if (compression && body.size() >= compressionThreshold) {
+				body = gzip(buffers);
+				request.setHeader("Content-Encoding", "gzip");
 			}
+			request.setBody(body.array(), body.size());
+			request.setConnectTimeout(timeout);
+			request.setReadTimeout(readTimeout);
 			
-			LOG.warn("Unable to communicate with the Coalmine server.");
-			
-			BufferedReader br = new BufferedReader(new InputStreamReader(conn.getErrorStream()));
-			StringBuilder sb = new StringBuilder();
-			String line;
-			while ((line = br.readLine()) != null) {
-				sb.append(line);
-				sb.append("\n");
+			int attempt = 1;
+			Outcome outcome = post(request, notifications.size());
+			while (outcome == Outcome.FAILED && retryPolicy != null && attempt < retryPolicy.getMaxAttempts()) {
+				long backoff = retryPolicy.getBackoff(attempt++);
+				LOG.debug("Retrying request to Coalmine in {} ms", backoff);
+				metrics.recordRetry();
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				outcome = post(request, notifications.size());
 			}
-		 
-			br.close();
-			LOG.warn("Response from Coalmine was: " + sb.toString());
+			return outcome;
+		} catch (IOException e) {
+			LOG.error("Unable to serialize notification for Coalmine", e);
+			return Outcome.REJECTED;
+		} finally {
+			releaseBuffers(buffers);
+		}
+	}
+	
+	/**
+	 * Count the notifications of a request by outcome.
+	 */
+	private Outcome count(Outcome outcome, int notifications) {
+		switch (outcome) {
+		case DELIVERED:
+			metrics.recordDelivered(notifications);
+			break;
+		case DEFERRED:
+			metrics.recordThrottled(notifications);
+			break;
+		default:
+			metrics.recordFailed(notifications);
+		}
+		return outcome;
+	}
+	
+	/**
+	 * Make a single attempt at a request, keeping the circuit breaker up to date.
+	 */
+	private Outcome post(TransportRequest request, int count) {
+		if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+			LOG.debug("Not sending {} notification(s) while Coalmine is unreachable", count);
+			return Outcome.DEFERRED;
+		}
+		
+		TransportResponse response = null;
+		long started = System.nanoTime();
+		try {
+			response = transport.post(request);
 		} catch (IOException e) {
 			LOG.error("Unable to send notification to Coalmine", e);
+			return Outcome.FAILED;
 		} finally {
-			if (conn != null) {
-				conn.disconnect();
+			metrics.recordPost(System.nanoTime() - started);
+			// Whatever went wrong, a half-open probe must not be left in flight.
+			if (response == null && circuitBreaker != null) {
+				circuitBreaker.recordFailure();
+			}
+		}
+		LOG.debug("Coalmine responded with {} (connection reused: {})", response.getStatusCode(), response.isConnectionReused());
+		
+		int status = response.getStatusCode();
+		if (circuitBreaker != null) {
+			if (status >= 500) {
+				circuitBreaker.recordFailure();
+			} else {
+				circuitBreaker.recordSuccess();
 			}
 		}
 		
-		return false;
+		if (status == 200) {
+			LOG.info("Successfully posted {} notification(s) to Coalmine", count);
+			return Outcome.DELIVERED;
+		} else if (status == 429) {
+			logThrottled(count);				
+			setTemporaryTimeout(response.getHeader("Retry-After"));
+			return Outcome.DEFERRED;
+		}
+		
+		LOG.warn("Unable to communicate with the Coalmine server.");
+		LOG.warn("Response from Coalmine was: " + response.getBody());
+		return status >= 500 ? Outcome.FAILED : Outcome.REJECTED;
+	}
+	
+	/**
+	 * Serialize the request body straight into the buffer as form fields: the
+	 * signature, and the notification JSON (a JSON array for batches) under the
+	 * json field. The JSON is URL-encoded as it is written, so the payload is
+	 * never materialized as a String.
+	 * 
+	 * @param notifications The notifications to send
+	 * @param body The buffer to write to
+	 * @throws IOException If a notification cannot be serialized
+	 */
+	private void writeBody(List<Notification> notifications, PayloadBuffer body) throws IOException {
+		FormEncodingWriter writer = new FormEncodingWriter(body);
+		
+		body.writeAscii("signature=");
+		if (signature != null) {
+			writer.write(signature);
+			writer.flush();
+		}
+		
+		body.writeAscii("&json=");
+		if (notifications.size() == 1) {
+			notifications.get(0).writeJson(writer);
+		} else {
+			writer.write('[');
+			for (int i = 0; i < notifications.size(); i++) {
+				if (i > 0) {
+					writer.write(',');
+				}
+				notifications.get(i).writeJson(writer);
+			}
+			writer.write(']');
+		}
+		writer.flush();
+	}
+	
+	private static RequestBuffers acquireBuffers() {
+		RequestBuffers buffers = BUFFERS.poll();
+		if (buffers == null) {
+			return new RequestBuffers();
+		}
+		POOLED_BUFFERS.decrementAndGet();
+		return buffers;
+	}
+	
+	private static void releaseBuffers(RequestBuffers buffers) {
+		buffers.body.reset();
+		buffers.compressed.reset();
+		if (POOLED_BUFFERS.incrementAndGet() > MAX_POOLED_BUFFERS) {
+			POOLED_BUFFERS.decrementAndGet();
+			buffers.deflater.end();
+			return;
+		}
+		BUFFERS.offer(buffers);
+	}
+	
+	/**
+	 * Gzip the body buffer into the compressed buffer, reusing the pooled
+	 * Deflater rather than allocating a new one for every request.
+	 */
+	private PayloadBuffer gzip(RequestBuffers buffers) {
+		PayloadBuffer body = buffers.body;
+		PayloadBuffer out = buffers.compressed;
+		out.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+		
+		Deflater deflater = buffers.deflater;
+		deflater.reset();
+		deflater.setInput(body.array(), 0, body.size());
+		deflater.finish();
+		while (!deflater.finished()) {
+			out.ensureCapacity(out.size() + 4096);
+			int written = deflater.deflate(out.array(), out.size(), out.array().length - out.size());
+			out.setSize(out.size() + written);
+		}
+		
+		CRC32 crc = buffers.crc;
+		crc.reset();
+		crc.update(body.array(), 0, body.size());
+		writeIntLittleEndian(out, (int) crc.getValue());
+		writeIntLittleEndian(out, body.size());
+		return out;
+	}
+	
+	private void writeIntLittleEndian(PayloadBuffer out, int value) {
+		out.write(value & 0xff);
+		out.write((value >> 8) & 0xff);
+		out.write((value >> 16) & 0xff);
+		out.write((value >> 24) & 0xff);
+	}
+	
+	/**
+	 * Enable gzip compression of request bodies. Notifications carry system
+	 * properties, stack traces and request headers, which compress well.
+	 * 
+	 * @param compression True to compress bodies at or above the compression threshold
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+	
+	/**
+	 * Set the body size below which requests are sent uncompressed, even when
+	 * compression is enabled. Small bodies do not gain enough to be worth it.
+	 * 
+	 * @param compressionThreshold The threshold in bytes. Defaults to 1024.
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		if (compressionThreshold < 0) {
+			throw new IllegalArgumentException("Compression threshold must not be negative");
+		}
+		
+		this.compressionThreshold = compressionThreshold;
+	}
+	
+	/**
+	 * Install a journal that keeps notifications which could not be delivered
+	 * and replays them once Coalmine accepts requests again. Must be called
+	 * before start().
+	 * 
+	 * @param journal The journal, or null to drop undeliverable notifications
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+	
+	public Journal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Retry requests that fail with a connection error or a server error.
+	 * Retries happen on the sending thread, so with a SimpleConnector the
+	 * caller waits for them.
+	 * 
+	 * @param retryPolicy The policy, or null to not retry. None by default;
+	 *            NoneBlockingConnector uses a default RetryPolicy.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	/**
+	 * @param circuitBreaker The breaker, or null to always attempt requests.
+	 *            A default CircuitBreaker is installed.
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+	
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+	
+	/**
+	 * Limit the rate at which notifications are sent to Coalmine. Each
+	 * notification takes one token. Notifications that find the bucket empty
+	 * are deferred: journaled if a journal is installed, otherwise dropped.
+	 * 
+	 * @param rateLimiter The limiter, or null for no client-side limit
+	 */
+	public void setRateLimiter(TokenBucket rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+	
+	/**
+	 * Set how long a request may wait for the rate limiter before it is
+	 * deferred. The wait happens on the sending thread.
+	 * 
+	 * @param rateLimitWait The wait in milliseconds. Defaults to 0 (never wait);
+	 *            NoneBlockingConnector waits up to 1000.
+	 */
+	public void setRateLimitWait(long rateLimitWait) {
+		if (rateLimitWait < 0) {
+			throw new IllegalArgumentException("Rate limit wait must not be negative");
+		}
+		
+		this.rateLimitWait = rateLimitWait;
 	}
 	
 	/**
@@ -197,11 +574,42 @@ public class SimpleConnector extends Connector {
 	 * @param strTimeoutSeconds The number of seconds to wait
 	 */
 	protected void setTemporaryTimeout(int timeout) {
-		lastThrottled = System.currentTimeMillis();
-		throttleTimeout = timeout;
+		throttleGate.throttle(timeout);
+	}
+	
+	private void logThrottled(int count) {
+		LOG.warn("Application is being throttled by Coalmine. {} notification(s) will not be sent.", count);
+	}
+	
+	/**
+	 * How a delivery attempt ended.
+	 */
+	private enum Outcome {
+		/** Coalmine accepted the notifications. */
+		DELIVERED,
+		/** Not sent because we are throttled or the circuit breaker is open. */
+		DEFERRED,
+		/** A connection error or server error; worth retrying. */
+		FAILED,
+		/** Coalmine refused the notifications; sending them again will not help. */
+		REJECTED;
+		
+		boolean isRetryable() {
+			return this == DEFERRED || this == FAILED;
+		}
 	}
 	
-	private void logThrottled() {
-		LOG.warn("Application is being throttled by Coalmine. Notification will not be sent.");
+	/**
+	 * Buffers and compression state used by one request at a time.
+	 */
+	private static final class RequestBuffers {
+		
+		final PayloadBuffer body = new PayloadBuffer();
+		
+		final PayloadBuffer compressed = new PayloadBuffer();
+		
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		
+		final CRC32 crc = new CRC32();
 	}
 }
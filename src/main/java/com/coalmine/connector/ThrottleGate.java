@@ -0,0 +1,53 @@
+package com.coalmine.connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers until when Coalmine asked us to stop sending. The deadline is a
+ * single primitive atomic, so checking the gate from many sending threads
+ * neither locks nor allocates.
+ */
+public class ThrottleGate {
+	
+	/** Time (epoch millis) until which we are throttled. 0 when not throttled. */
+	private final AtomicLong throttledUntil = new AtomicLong();
+	
+	/**
+	 * @return True if we are still inside a throttle period
+	 */
+	public boolean isThrottled() {
+		long until = throttledUntil.get();
+		return until != 0 && System.currentTimeMillis() < until;
+	}
+	
+	/**
+	 * Close the gate for the given number of seconds from now. A shorter
+	 * period never cuts short a longer one already in effect.
+	 *
+	 * @param seconds The number of seconds to wait before sending again
+	 */
+	public void throttle(int seconds) {
+		long until = System.currentTimeMillis() + seconds * 1000L;
+		while (true) {
+			long current = throttledUntil.get();
+			if (current >= until || throttledUntil.compareAndSet(current, until)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return Milliseconds until the gate opens again, 0 if it is open
+	 */
+	public long getRemaining() {
+		long remaining = throttledUntil.get() - System.currentTimeMillis();
+		return remaining > 0 ? remaining : 0;
+	}
+	
+	/**
+	 * Open the gate immediately.
+	 */
+	public void reset() {
+		throttledUntil.set(0);
+	}
+}
@@ -0,0 +1,95 @@
+package com.coalmine.connector;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client-side rate limiter, so we stay under Coalmine's rate limit instead of
+ * finding out from a 429. Tokens are added at a steady rate up to the bucket
+ * capacity, which is the largest burst allowed after a quiet period.
+ *
+ * The bucket is kept as a single atomic "theoretical arrival time" (the
+ * generic cell rate algorithm): taking tokens pushes that time forward by one
+ * emission interval per token, and is refused when it would run further ahead
+ * of the clock than the capacity allows. This is equivalent to a token bucket
+ * and needs no lock and no background refill.
+ */
+public class TokenBucket {
+	
+	private final long capacity;
+	
+	/** Nanoseconds between tokens. */
+	private final long interval;
+	
+	/** How far ahead of now the theoretical arrival time may run. */
+	private final long tolerance;
+	
+	private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+	
+	/**
+	 * @param ratePerSecond Tokens added per second
+	 * @param capacity Maximum number of tokens held, i.e. the largest burst
+	 */
+	public TokenBucket(double ratePerSecond, long capacity) {
+		if (ratePerSecond <= 0) {
+			throw new IllegalArgumentException("Rate must be positive");
+		}
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		
+		this.capacity = capacity;
+		this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+		this.tolerance = interval * capacity;
+	}
+	
+	/**
+	 * Take tokens if they are available now.
+	 *
+	 * @param tokens Number of tokens to take, at most the capacity
+	 * @return True if the tokens were taken
+	 */
+	public boolean tryAcquire(int tokens) {
+		return tryAcquire(tokens, 0, TimeUnit.NANOSECONDS);
+	}
+	
+	/**
+	 * Take tokens, waiting up to the timeout for them to become available.
+	 * When the wait would be longer than the timeout, nothing is taken and
+	 * the call returns straight away.
+	 *
+	 * @param tokens Number of tokens to take, at most the capacity
+	 * @param timeout Maximum time to wait
+	 * @param unit Unit of the timeout
+	 * @return True if the tokens were taken
+	 */
+	public boolean tryAcquire(int tokens, long timeout, TimeUnit unit) {
+		if (tokens < 1 || tokens > capacity) {
+			throw new IllegalArgumentException("Tokens must be between 1 and " + capacity);
+		}
+		
+		long maxWait = unit.toNanos(timeout);
+		while (true) {
+			long now = System.nanoTime();
+			long current = theoreticalArrival.get();
+			long next = Math.max(current - now, 0) + now + interval * tokens;
+			long wait = next - now - tolerance;
+			if (wait > maxWait) {
+				return false;
+			}
+			if (theoreticalArrival.compareAndSet(current, next)) {
+				// The tokens are reserved; wait until they have been added.
+				long deadline = now + wait;
+				for (long remaining = wait; remaining > 0; remaining = deadline - System.nanoTime()) {
+					LockSupport.parkNanos(remaining);
+				}
+				return true;
+			}
+		}
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+}
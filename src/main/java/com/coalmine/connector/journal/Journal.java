@@ -0,0 +1,655 @@
+package com.coalmine.connector.journal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.notification.Notification;
+
+/**
+ * Append-only file journal for notifications that could not be delivered,
+ * either because Coalmine was unreachable or throttling us, or because the
+ * send queue was full. Journaled notifications are replayed in the background
+ * once Coalmine accepts requests again, including after a restart.
+ *
+ * The journal is a directory of numbered segment files. Each record is framed
+ * by its length and a CRC32 of its contents. New records go to the last
+ * segment until it reaches the segment size, then a new segment is started.
+ * Segments are deleted once every record in them has been replayed, and the
+ * replay position is kept in a small checkpoint file. Records are delivered
+ * at least once: after a crash, records replayed since the last checkpoint
+ * may be sent again.
+ *
+ * When the journal reaches its maximum size, new records are rejected. On
+ * startup only the last segment is scanned, and a torn record at its end is
+ * truncated, so recovery time is bounded by the segment size.
+ *
+ * Install a journal with SimpleConnector.setJournal(). It is replayed while
+ * the connector is started.
+ */
+public class Journal {
+	
+	/**
+	 * When appended records are forced to disk.
+	 */
+	public enum FsyncPolicy {
+		/** After every record. Safest and slowest. */
+		ALWAYS,
+		/** At most once per fsync interval. */
+		INTERVAL,
+		/** Never; the operating system writes the data back in its own time. */
+		NEVER
+	}
+	
+	/** Default maximum size of the journal on disk: 16 MB. */
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+	
+	/** Default size at which a new segment is started: 1 MB. */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	
+	/** Default time between forced writes with FsyncPolicy.INTERVAL. */
+	public static final long DEFAULT_FSYNC_INTERVAL = 1000;
+	
+	/** Default time between replay attempts. */
+	public static final long DEFAULT_REPLAY_INTERVAL = 5000;
+	
+	private static final int HEADER_SIZE = 8;
+	private static final int REPLAY_BATCH_SIZE = 10;
+	private static final String SEGMENT_PREFIX = "coalmine-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+	private static final String CHECKPOINT_NAME = "coalmine.checkpoint";
+	private static final Logger LOG = LoggerFactory.getLogger(Journal.class);
+	
+	private final File directory;
+	
+	private long maxSize = DEFAULT_MAX_SIZE;
+	
+	private long segmentSize = DEFAULT_SEGMENT_SIZE;
+	
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+	
+	private long fsyncInterval = DEFAULT_FSYNC_INTERVAL;
+	
+	private long replayInterval = DEFAULT_REPLAY_INTERVAL;
+	
+	/** Segments on disk, oldest first. The last one is appended to. Guarded by this. */
+	private final LinkedList<Segment> segments = new LinkedList<Segment>();
+	
+	/** Offset of the next record to replay in the first segment. Guarded by this. */
+	private long readPosition;
+	
+	/** Offset just past the records handed out by the last poll. Guarded by this. */
+	private long pendingPosition = -1;
+	
+	/** Total bytes in all segments. Guarded by this. */
+	private long size;
+	
+	/** Whether records were appended since the last force. Guarded by this. */
+	private boolean dirty;
+	
+	private long lastForce;
+	
+	private RandomAccessFile checkpoint;
+	
+	private boolean opened;
+	
+	private final AtomicLong rejected = new AtomicLong();
+	
+	private Thread replayThread;
+	
+	/**
+	 * @param directory Directory holding the journal files. Created if missing.
+	 *            It must not be shared with another journal.
+	 */
+	public Journal(File directory) {
+		this.directory = directory;
+	}
+	
+	/**
+	 * Add a notification to the journal.
+	 *
+	 * @param notification The notification to keep
+	 * @return True if the notification was written, false if the journal is full or cannot be written
+	 */
+	public boolean append(Notification notification) {
+		byte[] record;
+		try {
+			StringBuilder json = new StringBuilder(512);
+			notification.writeJson(json);
+			record = json.toString().getBytes("UTF-8");
+		} catch (IOException e) {
+			LOG.error("Unable to serialize notification for the Coalmine journal", e);
+			return false;
+		}
+		
+		synchronized (this) {
+			int frameSize = HEADER_SIZE + record.length;
+			if (size + frameSize > maxSize || frameSize > segmentSize) {
+				rejected.incrementAndGet();
+				return false;
+			}
+			
+			try {
+				ensureOpen();
+				Segment active = segments.getLast();
+				if (active.size > 0 && active.size + frameSize > segmentSize) {
+					active = rotate();
+				}
+				
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				ByteBuffer frame = ByteBuffer.allocate(frameSize);
+				frame.putInt(record.length);
+				frame.putInt((int) crc.getValue());
+				frame.put(record);
+				frame.flip();
+				long position = active.size;
+				while (frame.hasRemaining()) {
+					position += active.channel.write(frame, position);
+				}
+				
+				active.size += frameSize;
+				size += frameSize;
+				dirty = true;
+				if (fsyncPolicy == FsyncPolicy.ALWAYS
+						|| (fsyncPolicy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastForce >= fsyncInterval)) {
+					force();
+				}
+				return true;
+			} catch (IOException e) {
+				LOG.error("Unable to write to the Coalmine journal in " + directory, e);
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Read the next records to replay. The records stay in the journal until
+	 * commit() is called; rollback() hands them out again on the next poll.
+	 *
+	 * @param max Maximum number of records to read
+	 * @return The JSON of each record, empty if the journal is empty
+	 */
+	public synchronized List<String> poll(int max) throws IOException {
+		ensureOpen();
+		while (true) {
+			Segment head = segments.getFirst();
+			if (readPosition < head.size || head == segments.getLast()) {
+				break;
+			}
+			
+			// Every record in a sealed segment has been replayed.
+			segments.removeFirst();
+			head.delete();
+			size -= head.size;
+			readPosition = 0;
+			writeCheckpoint();
+		}
+		
+		Segment head = segments.getFirst();
+		List<String> records = new ArrayList<String>();
+		long position = readPosition;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (records.size() < max && position + HEADER_SIZE <= head.size) {
+			header.clear();
+			readFully(head.channel, header, position);
+			int length = header.getInt(0);
+			int checksum = header.getInt(4);
+			if (length < 0 || position + HEADER_SIZE + length > head.size) {
+				LOG.warn("Skipping corrupt Coalmine journal segment {}", head.file);
+				position = head.size;
+				break;
+			}
+			
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(head.channel, record, position + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(record.array());
+			position += HEADER_SIZE + length;
+			if ((int) crc.getValue() != checksum) {
+				LOG.warn("Skipping corrupt record in Coalmine journal segment {}", head.file);
+				continue;
+			}
+			records.add(new String(record.array(), "UTF-8"));
+		}
+		
+		pendingPosition = position;
+		return records;
+	}
+	
+	/**
+	 * Remove the records handed out by the last poll.
+	 */
+	public synchronized void commit() throws IOException {
+		if (pendingPosition < 0) {
+			return;
+		}
+		
+		readPosition = pendingPosition;
+		pendingPosition = -1;
+		writeCheckpoint();
+	}
+	
+	/**
+	 * Keep the records handed out by the last poll for the next poll.
+	 */
+	public synchronized void rollback() {
+		pendingPosition = -1;
+	}
+	
+	/**
+	 * @return True if there are no records left to replay
+	 */
+	public synchronized boolean isEmpty() throws IOException {
+		ensureOpen();
+		if (readPosition < segments.getFirst().size) {
+			return false;
+		}
+		for (Segment segment : segments.subList(1, segments.size())) {
+			if (segment.size > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return Total size of the journal files in bytes, including replayed
+	 *         records not yet deleted
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return The number of records rejected because the journal was full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Replay journaled notifications through the connector until the journal
+	 * is empty or a delivery fails.
+	 *
+	 * @param connector The connector to deliver through
+	 * @return The number of notifications replayed
+	 */
+	public int replay(SimpleConnector connector) {
+		int replayed = 0;
+		try {
+			while (true) {
+				List<String> records = poll(REPLAY_BATCH_SIZE);
+				if (records.isEmpty()) {
+					commit();
+					break;
+				}
+				
+				List<Notification> notifications = new ArrayList<Notification>(records.size());
+				for (String record : records) {
+					notifications.add(new JournaledNotification(record));
+				}
+				if (!connector.redeliver(notifications)) {
+					rollback();
+					break;
+				}
+				commit();
+				replayed += records.size();
+			}
+			
+			synchronized (this) {
+				if (dirty && fsyncPolicy == FsyncPolicy.INTERVAL) {
+					force();
+				}
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to replay the Coalmine journal in " + directory, e);
+		}
+		
+		if (replayed > 0) {
+			LOG.info("Replayed {} journaled notification(s) to Coalmine", replayed);
+		}
+		return replayed;
+	}
+	
+	/**
+	 * Start replaying the journal through the connector in the background.
+	 */
+	public synchronized void start(final SimpleConnector connector) {
+		if (replayThread != null) {
+			return;
+		}
+		
+		replayThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!Thread.currentThread().isInterrupted()) {
+					try {
+						Thread.sleep(replayInterval);
+					} catch (InterruptedException e) {
+						break;
+					}
+					replay(connector);
+				}
+			}
+		}, "coalmine-journal");
+		replayThread.setDaemon(true);
+		replayThread.start();
+	}
+	
+	/**
+	 * Stop replaying, force outstanding records to disk and close the files.
+	 * The journal is reopened if it is used again.
+	 */
+	public void stop() {
+		Thread thread;
+		synchronized (this) {
+			thread = replayThread;
+			replayThread = null;
+		}
+		
+		if (thread != null) {
+			thread.interrupt();
+		}
+		close();
+	}
+	
+	/**
+	 * Set the maximum total size of the journal. Records that would take the
+	 * journal past this size are rejected.
+	 *
+	 * @param maxSize The maximum size in bytes. Defaults to 16 MB.
+	 */
+	public void setMaxSize(long maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Max size must be positive");
+		}
+		
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Set the size at which a new segment file is started. This also bounds
+	 * the size of a single record and the work done at startup.
+	 *
+	 * @param segmentSize The segment size in bytes. Defaults to 1 MB.
+	 */
+	public void setSegmentSize(long segmentSize) {
+		if (segmentSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("Segment size must be larger than " + HEADER_SIZE);
+		}
+		
+		this.segmentSize = segmentSize;
+	}
+	
+	/**
+	 * @param fsyncPolicy When appended records are forced to disk. Defaults to INTERVAL.
+	 */
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		if (fsyncPolicy == null) {
+			throw new IllegalArgumentException("Fsync policy must not be null");
+		}
+		
+		this.fsyncPolicy = fsyncPolicy;
+	}
+	
+	/**
+	 * @param fsyncInterval Milliseconds between forced writes with FsyncPolicy.INTERVAL. Defaults to 1000.
+	 */
+	public void setFsyncInterval(long fsyncInterval) {
+		if (fsyncInterval < 0) {
+			throw new IllegalArgumentException("Fsync interval must not be negative");
+		}
+		
+		this.fsyncInterval = fsyncInterval;
+	}
+	
+	/**
+	 * @param replayInterval Milliseconds between replay attempts. Defaults to 5000.
+	 */
+	public void setReplayInterval(long replayInterval) {
+		if (replayInterval < 1) {
+			throw new IllegalArgumentException("Replay interval must be positive");
+		}
+		
+		this.replayInterval = replayInterval;
+	}
+	
+	/**
+	 * Open the journal files, recovering the replay position and the end of
+	 * the last segment. Must be called while holding the lock.
+	 */
+	private void ensureOpen() throws IOException {
+		if (opened) {
+			return;
+		}
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create journal directory " + directory);
+		}
+		
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return parseSequence(file) >= 0;
+			}
+		});
+		long[] sequences = new long[files.length];
+		for (int i = 0; i < files.length; i++) {
+			sequences[i] = parseSequence(files[i]);
+		}
+		Arrays.sort(sequences);
+		
+		checkpoint = new RandomAccessFile(new File(directory, CHECKPOINT_NAME), "rw");
+		long checkpointSequence = -1;
+		long checkpointPosition = 0;
+		if (checkpoint.length() >= 16) {
+			checkpointSequence = checkpoint.readLong();
+			checkpointPosition = checkpoint.readLong();
+		}
+		
+		segments.clear();
+		size = 0;
+		readPosition = 0;
+		for (long sequence : sequences) {
+			Segment segment = new Segment(sequence, segmentFile(sequence));
+			if (sequence < checkpointSequence) {
+				// Fully replayed before the last shutdown.
+				segment.delete();
+				continue;
+			}
+			if (sequence == checkpointSequence) {
+				readPosition = checkpointPosition;
+			}
+			segment.open();
+			segments.add(segment);
+			size += segment.size;
+		}
+		
+		if (segments.isEmpty()) {
+			long sequence = Math.max(checkpointSequence, 0);
+			Segment segment = new Segment(sequence, segmentFile(sequence));
+			segment.open();
+			segments.add(segment);
+		} else {
+			// Only the last segment can end in a torn record.
+			Segment last = segments.getLast();
+			long valid = scan(last, last == segments.getFirst() ? Math.min(readPosition, last.size) : 0);
+			if (valid < last.size) {
+				LOG.warn("Truncating {} byte(s) of incomplete records from Coalmine journal segment {}", last.size - valid, last.file);
+				last.channel.truncate(valid);
+				size -= last.size - valid;
+				last.size = valid;
+			}
+		}
+		
+		if (readPosition > segments.getFirst().size) {
+			readPosition = segments.getFirst().size;
+		}
+		opened = true;
+		lastForce = System.currentTimeMillis();
+		writeCheckpoint();
+	}
+	
+	/**
+	 * @return The offset just past the last complete, intact record
+	 */
+	private long scan(Segment segment, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (position + HEADER_SIZE <= segment.size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			int length = header.getInt(0);
+			if (length < 0 || position + HEADER_SIZE + length > segment.size) {
+				break;
+			}
+			
+			ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(segment.channel, record, position + HEADER_SIZE);
+			CRC32 crc = new CRC32();
+			crc.update(record.array());
+			if ((int) crc.getValue() != header.getInt(4)) {
+				break;
+			}
+			position += HEADER_SIZE + length;
+		}
+		return position;
+	}
+	
+	/**
+	 * Seal the last segment and start a new one. Must be called while holding the lock.
+	 */
+	private Segment rotate() throws IOException {
+		Segment sealed = segments.getLast();
+		sealed.channel.force(false);
+		
+		Segment segment = new Segment(sealed.sequence + 1, segmentFile(sealed.sequence + 1));
+		segment.open();
+		segments.add(segment);
+		return segment;
+	}
+	
+	/** Must be called while holding the lock. */
+	private void force() throws IOException {
+		segments.getLast().channel.force(false);
+		dirty = false;
+		lastForce = System.currentTimeMillis();
+	}
+	
+	/** Must be called while holding the lock. */
+	private void writeCheckpoint() throws IOException {
+		Segment head = segments.getFirst();
+		checkpoint.seek(0);
+		checkpoint.writeLong(head.sequence);
+		checkpoint.writeLong(readPosition);
+	}
+	
+	private synchronized void close() {
+		if (!opened) {
+			return;
+		}
+		
+		try {
+			if (dirty) {
+				force();
+			}
+		} catch (IOException e) {
+			LOG.error("Unable to write the Coalmine journal in " + directory, e);
+		}
+		for (Segment segment : segments) {
+			segment.close();
+		}
+		try {
+			checkpoint.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		segments.clear();
+		opened = false;
+	}
+	
+	private File segmentFile(long sequence) {
+		return new File(directory, String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+	}
+	
+	private static long parseSequence(File file) {
+		String name = file.getName();
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of journal segment");
+			}
+			position += read;
+		}
+		buffer.flip();
+	}
+	
+	/**
+	 * One journal file.
+	 */
+	private static class Segment {
+		
+		final long sequence;
+		final File file;
+		RandomAccessFile raf;
+		FileChannel channel;
+		long size;
+		
+		Segment(long sequence, File file) {
+			this.sequence = sequence;
+			this.file = file;
+		}
+		
+		void open() throws IOException {
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			size = channel.size();
+		}
+		
+		void close() {
+			if (raf == null) {
+				return;
+			}
+			
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			raf = null;
+			channel = null;
+		}
+		
+		void delete() {
+			close();
+			if (!file.delete() && file.exists()) {
+				LOG.warn("Unable to delete Coalmine journal segment {}", file);
+			}
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.coalmine.connector.journal;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.coalmine.connector.notification.Notification;
+
+/**
+ * A notification read back from the journal. Its JSON was complete, including
+ * environment, version and user, when it was journaled, so it is sent as is.
+ */
+class JournaledNotification extends Notification {
+	
+	private final String json;
+	
+	JournaledNotification(String json) {
+		this.json = json;
+	}
+	
+	@Override
+	public Map<String, Object> getQueryParams() {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("json", json);
+		return params;
+	}
+	
+	@Override
+	public void writeJson(Appendable out) throws IOException {
+		out.append(json);
+	}
+}
@@ -1,18 +1,67 @@
 package com.coalmine.connector.logging;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.StackTraceElementProxy;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 
 import com.coalmine.Coalmine;
+import com.coalmine.connector.AdaptiveSampler;
 import com.coalmine.connector.Connector;
-import com.coalmine.connector.NoneBlockingConnector;
+import com.coalmine.connector.RetryPolicy;
 import com.coalmine.connector.SimpleConnector;
 import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.notification.Notification;
 import com.coalmine.connector.notification.Severity;
+import com.coalmine.connector.queue.BlockingWaitStrategy;
+import com.coalmine.connector.queue.MpscRingBuffer;
 
-public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
+/**
+ * Logback appender reporting events to Coalmine.
+ * 
+ * Logging threads do not build notifications. append() only checks the level,
+ * calls prepareForDeferredProcessing() so the event no longer depends on the
+ * logging thread, and queues it; a background worker turns queued events into
+ * notifications and sends them with a SimpleConnector, in batches of up to
+ * batchSize. The appender takes no lock, so logging threads do not wait on
+ * each other. With async set to false there is no queue and each event is
+ * sent on the logging thread.
+ * 
+ * The queue is the only one between logging and Coalmine. It holds queueSize
+ * events (256 by default). When fewer than
+ * discardingThreshold places are left, INFO and lower events are discarded;
+ * the default threshold of -1 means a fifth of the queue. When the queue is
+ * full, logging threads wait up to maxBlockTime for room, or with neverBlock
+ * set, the event is dropped. Discarded and dropped events are counted as
+ * dropped in the connector's metrics. How full the queue is counts as the
+ * connector's load, so a sampler tightens its rates as the queue fills. The names follow logback's AsyncAppender, e.g.
+ * 
+ * <pre>
+ * &lt;appender name="coalmine" class="com.coalmine.connector.logging.CoalmineAppender"&gt;
+ *   &lt;signature&gt;...&lt;/signature&gt;
+ *   &lt;queueSize&gt;512&lt;/queueSize&gt;
+ *   &lt;neverBlock&gt;true&lt;/neverBlock&gt;
+ * &lt;/appender&gt;
+ * </pre>
+ */
+public class CoalmineAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+	
+	/** Default number of events queued for the worker. */
+	public static final int DEFAULT_QUEUE_SIZE = 256;
+	
+	/** Largest queueSize accepted. */
+	public static final int MAX_QUEUE_SIZE = 1 << 30;
+	
+	private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/** Default milliseconds a logging thread waits for room in a full queue. */
+	public static final long DEFAULT_MAX_BLOCK_TIME = 1000;
 
 	/**
 	 * Parameters
@@ -23,8 +72,33 @@ public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
 	
 	private Level level = Level.ERROR;
 	private boolean async = true;
+	private int batchSize = 1;
+	private long batchLinger = 0;
+	private boolean compression = false;
+	private long shutdownTimeout = Connector.DEFAULT_SHUTDOWN_TIMEOUT;
+	private String sampleRates;
+	private int samplingTargetRate = -1;
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private int discardingThreshold = -1;
+	private boolean neverBlock = false;
+	private long maxBlockTime = DEFAULT_MAX_BLOCK_TIME;
+	
+	private SimpleConnector connector;
 	
-	private Connector connector;
+	private MpscRingBuffer<QueuedEvent> events;
+	
+	/** The discarding threshold in effect, worked out when the appender starts. */
+	private int discardBelow;
+	
+	private Worker worker;
+	
+	/** Logging threads waiting for room wait on notFull. */
+	private final ReentrantLock fullLock = new ReentrantLock();
+	
+	private final Condition notFull = fullLock.newCondition();
+	
+	/** Number of logging threads waiting for room, so the worker only signals when needed. */
+	private volatile int blocked;
 	
 	@Override
 	protected void append(ILoggingEvent event) {
@@ -39,37 +113,180 @@ public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
 			return;
 		}
 		
+		if (!async) {
+			LoggedNotification notification = buildNotification(event, Thread.currentThread().getId());
+			if (notification != null) {
+				connector.send(notification);
+			}
+			return;
+		}
+		
+		if (isDiscardable(event) && events.capacity() - events.size() < discardBelow) {
+			connector.getMetrics().recordDropped(1);
+			return;
+		}
+		
+		event.prepareForDeferredProcessing();
+		QueuedEvent queued = new QueuedEvent(event, Thread.currentThread().getId());
+		if (!events.offer(queued) && (neverBlock || !awaitRoom(queued))) {
+			connector.getMetrics().recordDropped(1);
+		}
+	}
+	
+	/**
+	 * Wait up to maxBlockTime for the worker to make room for an event.
+	 * 
+	 * @return true if the event was queued
+	 */
+	private boolean awaitRoom(QueuedEvent queued) {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(maxBlockTime);
+		fullLock.lock();
+		blocked++;
+		try {
+			while (!events.offer(queued)) {
+				if (nanos <= 0 || !isStarted()) {
+					return false;
+				}
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blocked--;
+			fullLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wake logging threads waiting for room.
+	 * 
+	 * @param all Wake all of them rather than one
+	 */
+	private void signalNotFull(boolean all) {
+		if (blocked > 0) {
+			fullLock.lock();
+			try {
+				if (all) {
+					notFull.signalAll();
+				} else {
+					notFull.signal();
+				}
+			} finally {
+				fullLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Turn an event into a notification. Called on the worker thread, unless
+	 * the appender is not async.
+	 * 
+	 * @param threadId Id of the thread that logged the event
+	 * @return The notification, or null if the event was sampled out
+	 */
+	protected LoggedNotification buildNotification(ILoggingEvent event, long threadId) {
+		Severity severity = getSeverity(event.getLevel());
+		double sampleRate = connector.sample(severity);
+		if (sampleRate == 0) {
+			return null;
+		}
+		
 		LoggedNotification notification = generateBaseNotification(event);
 		
-		notification.setSeverity(getSeverity(event.getLevel()));
+		notification.setSeverity(severity);
+		notification.setSampleRate(sampleRate);
 		notification.setMessage(event.getMessage());
+		notification.setThreadId(threadId);
 		
+		// setEnvironment() copies the map, within the size budget.
 		notification.setEnvironment(event.getMDCPropertyMap());
 		
-		connector.send(notification);
+		return notification;
+	}
+	
+	/**
+	 * Events of level INFO and lower may be discarded when the queue is nearly full.
+	 */
+	protected boolean isDiscardable(ILoggingEvent event) {
+		return event.getLevel().toInt() <= Level.INFO_INT;
 	}
 	
 	@Override
 	public void start() {		
 
 		// fallback on Coalmine static config when local config is unavailable
-		if(async) {
-			this.connector = new NoneBlockingConnector(signature == null ? Coalmine.getSignature() : signature);
-		} else {			
-			this.connector = new SimpleConnector(signature == null ? Coalmine.getSignature() : signature);
+		this.connector = new SimpleConnector(signature == null ? Coalmine.getSignature() : signature) {
+			@Override
+			protected double getLoad() {
+				// The appender's queue is the one that fills up.
+				MpscRingBuffer<QueuedEvent> queue = events;
+				return queue == null ? 0 : queue.size() / (double) queue.capacity();
+			}
+		};
+		if (async) {
+			// Retrying only holds up the worker.
+			this.connector.setRetryPolicy(new RetryPolicy());
 		}
 		
+		this.connector.setCompression(compression);
 		this.connector.setApplicationEnvironment(environment == null ? Coalmine.getEnvironment() : environment);
 		this.connector.setVersion(version == null ? Coalmine.getVersion() : version);
+		if (sampleRates != null || samplingTargetRate >= 0) {
+			AdaptiveSampler sampler = new AdaptiveSampler();
+			if (sampleRates != null) {
+				sampler.setRates(sampleRates);
+			}
+			if (samplingTargetRate >= 0) {
+				sampler.setTargetRate(samplingTargetRate);
+			}
+			this.connector.setSampler(sampler);
+		}
 		this.connector.start();		
 		
+		if (async) {
+			if (queueSize < 1 || queueSize > MAX_QUEUE_SIZE) {
+				addWarn("Invalid queueSize " + queueSize + ", using " + DEFAULT_QUEUE_SIZE);
+				queueSize = DEFAULT_QUEUE_SIZE;
+			}
+			this.events = new MpscRingBuffer<QueuedEvent>(queueSize, new BlockingWaitStrategy());
+			this.discardBelow = discardingThreshold < 0 ? events.capacity() / 5 : discardingThreshold;
+			this.worker = new Worker();
+			this.worker.start();
+		}
+		
 		super.start();
 	}
 	
+	/**
+	 * Stop taking events and give the worker up to the shutdown timeout to
+	 * send what is queued. Events still queued after that are dropped.
+	 */
 	@Override
 	public void stop() {
-		this.connector.stop();
+		if (!isStarted()) {
+			return;
+		}
 		super.stop();
+		signalNotFull(true);
+		
+		if (worker != null) {
+			worker.shutdown();
+			try {
+				worker.join(shutdownTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			worker = null;
+			int left = events.size();
+			if (left > 0) {
+				addWarn("Dropped " + left + " event(s) still queued when the appender stopped");
+				connector.getMetrics().recordDropped(left);
+			}
+		}
+		
+		this.connector.stop();
 	}
 	
 	protected LoggedNotification generateBaseNotification(ILoggingEvent event) {
@@ -90,13 +307,14 @@ public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
 			notification.setMethodName(lines[0].getStackTraceElement().getMethodName());
 		}
 
-		StringBuilder sb = new StringBuilder();
-		for (StackTraceElementProxy el : lines) {
-			sb.append(el.toString());
-			sb.append("\n");
+		// Keep the raw frames; they are rendered when the notification is sent,
+		// as StackTraceElementProxy.toString() would.
+		StackTraceElement[] frames = new StackTraceElement[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			frames[i] = lines[i].getStackTraceElement();
 		}
 
-		notification.setStackTrace(sb.toString());
+		notification.setStackTrace(frames, "at ");
 		
 		return notification;
 	}
@@ -116,6 +334,51 @@ public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
 	public void setAsync(boolean async) {
 		this.async = async;
 	}
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+	public void setBatchLinger(long batchLinger) {
+		this.batchLinger = batchLinger;
+	}
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+	public void setSampleRates(String sampleRates) {
+		this.sampleRates = sampleRates;
+	}
+	public void setSamplingTargetRate(int samplingTargetRate) {
+		this.samplingTargetRate = samplingTargetRate;
+	}
+	/**
+	 * @param queueSize Number of events queued for the worker, rounded up to a power of two,
+	 *            up to 2^30. Defaults to 256.
+	 */
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+	/**
+	 * @param maxBlockTime Milliseconds a logging thread waits for room in a full queue before
+	 *            the event is dropped. Defaults to 1000.
+	 */
+	public void setMaxBlockTime(long maxBlockTime) {
+		this.maxBlockTime = maxBlockTime;
+	}
+	/**
+	 * @param discardingThreshold Discard INFO and lower events when fewer places are left in the queue;
+	 *            0 keeps them, -1 (the default) means a fifth of the queue.
+	 */
+	public void setDiscardingThreshold(int discardingThreshold) {
+		this.discardingThreshold = discardingThreshold;
+	}
+	/**
+	 * @param neverBlock Drop events when the queue is full instead of waiting for room. Defaults to false.
+	 */
+	public void setNeverBlock(boolean neverBlock) {
+		this.neverBlock = neverBlock;
+	}
 	public void setSignature(String signature) {
 		this.signature = signature;
 	}
@@ -128,4 +391,112 @@ public class CoalmineAppender extends AppenderBase<ILoggingEvent> {
 	public void setLevel(Level level) {
 		this.level = level;
 	}
+	public SimpleConnector getConnector() {
+		return connector;
+	}
+	
+	/**
+	 * An event with the id of the thread that logged it, since the
+	 * notification is built on the worker.
+	 */
+	private static class QueuedEvent {
+		
+		final ILoggingEvent event;
+		
+		final long threadId;
+		
+		QueuedEvent(ILoggingEvent event, long threadId) {
+			this.event = event;
+			this.threadId = threadId;
+		}
+	}
+	
+	private class Worker extends Thread {
+		
+		private volatile boolean active = true;
+		
+		Worker() {
+			super("coalmine-appender");
+			setDaemon(true);
+		}
+		
+		private final List<Notification> batch = new ArrayList<Notification>();
+		
+		@Override
+		public void run() {
+			while (true) {
+				QueuedEvent queued = poll();
+				if (queued == null) {
+					if (!active) {
+						return;
+					}
+					await(IDLE_WAIT_NANOS);
+					continue;
+				}
+				
+				try {
+					add(queued);
+					fillBatch();
+					if (!batch.isEmpty()) {
+						connector.sendBatch(batch);
+					}
+				} catch (RuntimeException e) {
+					addError("Unable to report event to Coalmine", e);
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+		
+		/**
+		 * Top up the batch with queued events, waiting up to the linger time
+		 * for more until it is full.
+		 */
+		private void fillBatch() {
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLinger);
+			while (batch.size() < batchSize) {
+				QueuedEvent queued = poll();
+				if (queued != null) {
+					add(queued);
+					continue;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0 || !active) {
+					return;
+				}
+				await(remaining);
+			}
+		}
+		
+		private QueuedEvent poll() {
+			QueuedEvent queued = events.poll();
+			if (queued != null) {
+				signalNotFull(false);
+			}
+			return queued;
+		}
+		
+		private void add(QueuedEvent queued) {
+			LoggedNotification notification = buildNotification(queued.event, queued.threadId);
+			if (notification != null) {
+				connector.getMetrics().recordEnqueued();
+				batch.add(notification);
+			}
+		}
+		
+		private void await(long nanos) {
+			try {
+				events.await(nanos);
+			} catch (InterruptedException e) {
+				// ignore
+			}
+		}
+		
+		/**
+		 * Exit once the queue is empty.
+		 */
+		void shutdown() {
+			active = false;
+		}
+	}
 }
@@ -2,6 +2,7 @@ package com.coalmine.connector.logging;
 
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 
 import org.slf4j.Logger;
@@ -9,6 +10,7 @@ import org.slf4j.LoggerFactory;
 
 import com.coalmine.Coalmine;
 import com.coalmine.connector.Connector;
+import com.coalmine.connector.NoneBlockingConnector;
 import com.coalmine.connector.SimpleConnector;
 import com.coalmine.connector.notification.LoggedNotification;
 import com.coalmine.connector.notification.Severity;
@@ -16,12 +18,37 @@ import com.coalmine.connector.notification.Severity;
 /**
  * A java.util.logging Handler to send log messages to Coalmine. By default,
  * only WARNING and higher are sent. Use setLevel() to change the minimum level.
+ * 
+ * flush() gives pending notifications at most MAX_FLUSH_WAIT to be
+ * delivered, since it is called on logging threads. close() stops a
+ * connector the handler created itself, waiting at most the shutdown
+ * timeout. A connector passed to the constructor is left for its owner to
+ * stop.
+ * 
+ * When created from logging.properties, notifications are queued and sent by
+ * a background worker (a NoneBlockingConnector), so logging threads never wait
+ * on Coalmine. Set the async property to false to send on the logging thread.
  */
 public class CoalmineHandler extends Handler {
 
 	/** The entity responsible for sending notifications to Coalmine. */
 	protected Connector connector;
 	
+	/** Whether the connector was created, and so must be stopped, by this handler. */
+	protected boolean ownsConnector;
+	
+	/** Maximum milliseconds close() waits for pending notifications. */
+	protected long shutdownTimeout = Connector.DEFAULT_SHUTDOWN_TIMEOUT;
+	
+	/** Default number of notifications queued when sending asynchronously. */
+	public static final int DEFAULT_QUEUE_SIZE = 128;
+	
+	/** Default number of workers sending notifications asynchronously. */
+	public static final int DEFAULT_WORKERS = 1;
+	
+	/** Maximum milliseconds flush() waits for pending notifications. */
+	public static final long MAX_FLUSH_WAIT = 100;
+	
 	private static final Logger LOG = LoggerFactory.getLogger(CoalmineHandler.class);
 	
 	/**
@@ -52,16 +79,60 @@ public class CoalmineHandler extends Handler {
 	 *		# Use the default JUL handler and the CoalmineHandler
 	 *		handlers = java.util.logging.ConsoleHandler,com.coalmine.connector.logging.CoalmineHandler
 	 *
+	 *		# Optional handler settings, shown with their defaults
+	 *		com.coalmine.connector.logging.CoalmineHandler.level = WARNING
+	 *		com.coalmine.connector.logging.CoalmineHandler.async = true
+	 *		com.coalmine.connector.logging.CoalmineHandler.queueSize = 128
+	 *		com.coalmine.connector.logging.CoalmineHandler.workers = 1
+	 *		com.coalmine.connector.logging.CoalmineHandler.shutdownTimeout = 5000
+	 *
+	 * Subclasses read the same settings under their own class name.
 	 */
 	public CoalmineHandler() {
-		this(new SimpleConnector(Coalmine.getSignature()));
+		this((Connector) null);
+		configure();
+	}
+	
+	/**
+	 * Read the handler settings from the LogManager and create the connector.
+	 */
+	protected void configure() {
+		String level = getProperty("level");
+		if (level != null) {
+			try {
+				setLevel(Level.parse(level));
+			} catch (IllegalArgumentException e) {
+				LOG.warn("Invalid level for {}: {}", getClass().getName(), level);
+			}
+		}
+		
+		shutdownTimeout = getProperty("shutdownTimeout", Connector.DEFAULT_SHUTDOWN_TIMEOUT);
+		
+		connector = createConnector();
+		ownsConnector = true;
 		connector.setApplicationEnvironment(Coalmine.getEnvironment());
 		connector.setVersion(Coalmine.getVersion());
+		connector.start();
+	}
+	
+	/**
+	 * Create the connector from the async, queueSize and workers settings.
+	 * Called by configure().
+	 */
+	protected Connector createConnector() {
+		if ("false".equalsIgnoreCase(getProperty("async"))) {
+			return new SimpleConnector(Coalmine.getSignature());
+		}
+		
+		NoneBlockingConnector nonBlocking = new NoneBlockingConnector(Coalmine.getSignature(),
+				(int) getPositiveProperty("queueSize", DEFAULT_QUEUE_SIZE));
+		nonBlocking.setWorkers((int) getPositiveProperty("workers", DEFAULT_WORKERS));
+		return nonBlocking;
 	}
 
 	@Override
 	public void flush() {
-		// TODO Queue up messages to send to Coalmine
+		connector.flush(Math.min(shutdownTimeout, MAX_FLUSH_WAIT));
 	}
 
 	@Override
@@ -76,10 +147,15 @@ public class CoalmineHandler extends Handler {
 			return;
 		}
 		
-		// TODO: Queue this up for later sending instead.
+		Severity severity = getSeverity(record.getLevel());
+		double sampleRate = connector.sample(severity);
+		if (sampleRate == 0) {
+			return;
+		}
 		
 		LoggedNotification notification = buildLoggedNotification(record.getThrown());
-		notification.setSeverity(getSeverity(record.getLevel()));
+		notification.setSeverity(severity);
+		notification.setSampleRate(sampleRate);
 		notification.setMessage(record.getMessage());
 		notification.setMethodName(record.getSourceMethodName());
 		notification.setClassName(record.getSourceClassName());
@@ -89,7 +165,54 @@ public class CoalmineHandler extends Handler {
 	
 	@Override
 	public void close() throws SecurityException {
-		// Do nothing
+		if (ownsConnector) {
+			connector.stop(shutdownTimeout);
+		}
+	}
+	
+	/**
+	 * @param shutdownTimeout Maximum milliseconds close() waits for pending
+	 *            notifications on a connector the handler created. Defaults
+	 *            to 5000.
+	 */
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+	
+	/**
+	 * @param name Name of a setting, without the class name prefix
+	 * @return The setting from the LogManager, or null if it is not set
+	 */
+	protected String getProperty(String name) {
+		String value = LogManager.getLogManager().getProperty(getClass().getName() + "." + name);
+		return value == null || value.trim().isEmpty() ? null : value.trim();
+	}
+	
+	private long getProperty(String name, long defaultValue) {
+		String value = getProperty(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			LOG.warn("Invalid {} for {}: {}", new Object[] { name, getClass().getName(), value });
+			return defaultValue;
+		}
+	}
+	
+	/**
+	 * Same as getProperty(name, defaultValue), but falls back to the default
+	 * for values below 1 rather than failing to create the handler.
+	 */
+	private long getPositiveProperty(String name, long defaultValue) {
+		long value = getProperty(name, defaultValue);
+		if (value < 1) {
+			LOG.warn("Invalid {} for {}: {}, using {}", new Object[] { name, getClass().getName(), value, defaultValue });
+			return defaultValue;
+		}
+		return value;
 	}
 	
 	protected LoggedNotification buildLoggedNotification(Throwable ex) {
@@ -2,7 +2,10 @@ package com.coalmine.connector.logging;
 
 import java.util.logging.Level;
 
+import com.coalmine.Coalmine;
 import com.coalmine.connector.Connector;
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.transport.UrlConnectionTransport;
 
 /**
  * GAE log Handlers must manually manage the level to prevent SecurityException
@@ -21,6 +24,25 @@ public class GaeCoalmineHandler extends CoalmineHandler {
 		level = Level.WARNING;
 	}
 	
+	/**
+	 * Constructor for logging.properties. See CoalmineHandler() for the
+	 * settings; async, queueSize and workers do not apply.
+	 */
+	public GaeCoalmineHandler() {
+		super();
+	}
+	
+	/**
+	 * GAE restricts background threads and does not allow the raw sockets the
+	 * pooled transport uses, so send synchronously over URLConnection.
+	 */
+	@Override
+	protected Connector createConnector() {
+		SimpleConnector simple = new SimpleConnector(Coalmine.getSignature());
+		simple.setTransport(new UrlConnectionTransport());
+		return simple;
+	}
+	
 	/**
 	 * We override to avoid security conflicts on Google App Engine.
 	 */
@@ -10,6 +10,10 @@ public class GwtGaeCoalmineHandler extends GaeCoalmineHandler {
 		super(connector);
 	}
 	
+	public GwtGaeCoalmineHandler() {
+		super();
+	}
+	
 	protected LoggedNotification buildLoggedNotification(Throwable ex) {
 		return new GwtLoggedNotification(ex);
 	}
@@ -0,0 +1,223 @@
+package com.coalmine.connector.metrics;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coalmine.connector.Connector;
+
+/**
+ * What happened to the notifications given to a connector, and how long its
+ * requests to Coalmine take. Every connector has one; read it with
+ * Connector.getMetrics().snapshot(), or register it with JMX.
+ *
+ * Counts are per notification:
+ * - enqueued: accepted by send(), queued or about to be sent
+ * - delivered: accepted by Coalmine
+ * - dropped: lost, because the queue was full, the connector stopped, or
+ *   delivery failed without a journal to fall back on
+ * - journaled: written to the journal to be replayed later
+ * - throttled: held back by Coalmine's throttling, the rate limiter or the
+ *   circuit breaker
+ * - failed: refused by Coalmine, or still failing after the retries
+ * - retries: requests sent again after a failure (counted per request)
+ *
+ * Counters are striped, so updating them from many threads is cheap.
+ */
+public class ConnectorMetrics implements ConnectorMetricsMBean {
+	
+	/** Domain of the ObjectNames used by register(). */
+	public static final String JMX_DOMAIN = "com.coalmine";
+	
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectorMetrics.class);
+	
+	private final StripedCounter enqueued = new StripedCounter();
+	
+	private final StripedCounter delivered = new StripedCounter();
+	
+	private final StripedCounter dropped = new StripedCounter();
+	
+	private final StripedCounter journaled = new StripedCounter();
+	
+	private final StripedCounter throttled = new StripedCounter();
+	
+	private final StripedCounter failed = new StripedCounter();
+	
+	private final StripedCounter retries = new StripedCounter();
+	
+	private final LatencyHistogram postLatency = new LatencyHistogram();
+	
+	/** The connector measured, asked for its queue depth. */
+	private final Connector connector;
+	
+	private volatile ObjectName registeredAs;
+	
+	public ConnectorMetrics(Connector connector) {
+		this.connector = connector;
+	}
+	
+	public void recordEnqueued() {
+		enqueued.increment();
+	}
+	
+	public void recordDelivered(int count) {
+		delivered.add(count);
+	}
+	
+	public void recordDropped(int count) {
+		dropped.add(count);
+	}
+	
+	public void recordJournaled(int count) {
+		journaled.add(count);
+	}
+	
+	public void recordThrottled(int count) {
+		throttled.add(count);
+	}
+	
+	public void recordFailed(int count) {
+		failed.add(count);
+	}
+	
+	public void recordRetry() {
+		retries.increment();
+	}
+	
+	/**
+	 * @param nanos How long a request to Coalmine took, successful or not
+	 */
+	public void recordPost(long nanos) {
+		postLatency.record(nanos);
+	}
+	
+	/**
+	 * @return The current values, copied so they can be compared or logged
+	 */
+	public MetricsSnapshot snapshot() {
+		return new MetricsSnapshot(this);
+	}
+	
+	/**
+	 * Register with the platform MBean server as
+	 * com.coalmine:type=Connector,name=[name]. Does nothing if already
+	 * registered.
+	 * 
+	 * @param name Name distinguishing this connector from others in the JVM
+	 * @return True if registered
+	 */
+	public boolean register(String name) {
+		if (registeredAs != null) {
+			return true;
+		}
+		
+		try {
+			ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=Connector,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			registeredAs = objectName;
+			return true;
+		} catch (JMException e) {
+			LOG.warn("Unable to register Coalmine connector metrics with JMX", e);
+		} catch (SecurityException e) {
+			LOG.warn("Not allowed to register Coalmine connector metrics with JMX", e);
+		}
+		return false;
+	}
+	
+	/**
+	 * Remove the MBean registered by register(), if any.
+	 */
+	public void unregister() {
+		ObjectName objectName = registeredAs;
+		if (objectName == null) {
+			return;
+		}
+		
+		registeredAs = null;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			LOG.warn("Unable to unregister Coalmine connector metrics from JMX", e);
+		}
+	}
+	
+	@Override
+	public long getEnqueued() {
+		return enqueued.sum();
+	}
+	
+	@Override
+	public long getDelivered() {
+		return delivered.sum();
+	}
+	
+	@Override
+	public long getDropped() {
+		return dropped.sum();
+	}
+	
+	@Override
+	public long getJournaled() {
+		return journaled.sum();
+	}
+	
+	@Override
+	public long getThrottled() {
+		return throttled.sum();
+	}
+	
+	@Override
+	public long getFailed() {
+		return failed.sum();
+	}
+	
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+	
+	@Override
+	public int getQueueDepth() {
+		return connector.getQueueSize();
+	}
+	
+	@Override
+	public long getPostCount() {
+		return postLatency.getCount();
+	}
+	
+	@Override
+	public double getPostLatencyMean() {
+		return postLatency.getMean();
+	}
+	
+	@Override
+	public double getPostLatencyP50() {
+		return postLatency.getPercentile(50);
+	}
+	
+	@Override
+	public double getPostLatencyP99() {
+		return postLatency.getPercentile(99);
+	}
+	
+	@Override
+	public double getPostLatencyMax() {
+		return postLatency.getMax();
+	}
+	
+	/**
+	 * @return The distribution of request latencies
+	 */
+	public LatencyHistogram getPostLatency() {
+		return postLatency;
+	}
+}
@@ -0,0 +1,34 @@
+package com.coalmine.connector.metrics;
+
+/**
+ * JMX view of a connector's metrics. Counts are totals since the connector
+ * was created; latencies are in milliseconds.
+ */
+public interface ConnectorMetricsMBean {
+	
+	long getEnqueued();
+	
+	long getDelivered();
+	
+	long getDropped();
+	
+	long getJournaled();
+	
+	long getThrottled();
+	
+	long getFailed();
+	
+	long getRetries();
+	
+	int getQueueDepth();
+	
+	long getPostCount();
+	
+	double getPostLatencyMean();
+	
+	double getPostLatencyP50();
+	
+	double getPostLatencyP99();
+	
+	double getPostLatencyMax();
+}
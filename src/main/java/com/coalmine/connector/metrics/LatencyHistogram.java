@@ -0,0 +1,92 @@
+package com.coalmine.connector.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of latencies in power of two buckets of microseconds: bucket 0
+ * holds latencies under 1 microsecond, bucket n latencies from 2^(n-1) up to
+ * 2^n microseconds. Percentiles are therefore accurate to within a factor of
+ * two, which is plenty to see a slow endpoint. Recording neither locks nor
+ * allocates.
+ */
+public class LatencyHistogram {
+	
+	/** Enough buckets for latencies up to about 9 minutes. */
+	static final int BUCKETS = 30;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	
+	private final StripedCounter totalMicros = new StripedCounter();
+	
+	private final AtomicLong maxMicros = new AtomicLong();
+	
+	/**
+	 * @param nanos A latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		totalMicros.add(micros);
+		
+		long max = maxMicros.get();
+		while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+			max = maxMicros.get();
+		}
+	}
+	
+	/**
+	 * @return The number of latencies recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The mean latency in milliseconds, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : totalMicros.sum() / 1000.0 / count;
+	}
+	
+	/**
+	 * @return The highest latency recorded, in milliseconds
+	 */
+	public double getMax() {
+		return maxMicros.get() / 1000.0;
+	}
+	
+	/**
+	 * @param percentile The percentile, from 0 to 100
+	 * @return Upper bound in milliseconds of the bucket holding the
+	 *         percentile, 0 if nothing was recorded
+	 */
+	public double getPercentile(double percentile) {
+		long[] counts = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+		
+		long rank = (long) Math.ceil(percentile / 100.0 * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min((1L << i) / 1000.0, getMax());
+			}
+		}
+		return getMax();
+	}
+}
@@ -0,0 +1,105 @@
+package com.coalmine.connector.metrics;
+
+/**
+ * The values of a connector's metrics at one point in time.
+ */
+public class MetricsSnapshot {
+	
+	private final long enqueued;
+	private final long delivered;
+	private final long dropped;
+	private final long journaled;
+	private final long throttled;
+	private final long failed;
+	private final long retries;
+	private final int queueDepth;
+	private final long postCount;
+	private final double postLatencyMean;
+	private final double postLatencyP50;
+	private final double postLatencyP99;
+	private final double postLatencyP999;
+	private final double postLatencyMax;
+	
+	MetricsSnapshot(ConnectorMetrics metrics) {
+		enqueued = metrics.getEnqueued();
+		delivered = metrics.getDelivered();
+		dropped = metrics.getDropped();
+		journaled = metrics.getJournaled();
+		throttled = metrics.getThrottled();
+		failed = metrics.getFailed();
+		retries = metrics.getRetries();
+		queueDepth = metrics.getQueueDepth();
+		LatencyHistogram latency = metrics.getPostLatency();
+		postCount = latency.getCount();
+		postLatencyMean = latency.getMean();
+		postLatencyP50 = latency.getPercentile(50);
+		postLatencyP99 = latency.getPercentile(99);
+		postLatencyP999 = latency.getPercentile(99.9);
+		postLatencyMax = latency.getMax();
+	}
+	
+	public long getEnqueued() {
+		return enqueued;
+	}
+	
+	public long getDelivered() {
+		return delivered;
+	}
+	
+	public long getDropped() {
+		return dropped;
+	}
+	
+	public long getJournaled() {
+		return journaled;
+	}
+	
+	public long getThrottled() {
+		return throttled;
+	}
+	
+	public long getFailed() {
+		return failed;
+	}
+	
+	public long getRetries() {
+		return retries;
+	}
+	
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+	
+	public long getPostCount() {
+		return postCount;
+	}
+	
+	/** Latencies are in milliseconds. */
+	public double getPostLatencyMean() {
+		return postLatencyMean;
+	}
+	
+	public double getPostLatencyP50() {
+		return postLatencyP50;
+	}
+	
+	public double getPostLatencyP99() {
+		return postLatencyP99;
+	}
+	
+	public double getPostLatencyP999() {
+		return postLatencyP999;
+	}
+	
+	public double getPostLatencyMax() {
+		return postLatencyMax;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("enqueued=%d delivered=%d dropped=%d journaled=%d throttled=%d failed=%d retries=%d "
+				+ "queueDepth=%d posts=%d latency(ms) mean=%.1f p50=%.1f p99=%.1f p999=%.1f max=%.1f",
+				enqueued, delivered, dropped, journaled, throttled, failed, retries,
+				queueDepth, postCount, postLatencyMean, postLatencyP50, postLatencyP99, postLatencyP999, postLatencyMax);
+	}
+}
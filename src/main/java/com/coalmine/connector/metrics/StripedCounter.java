@@ -0,0 +1,51 @@
+package com.coalmine.connector.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for values updated from many threads at once. Updates are spread
+ * over several cells, each on its own cache line, chosen by thread id, so
+ * threads rarely contend on the same cell. Reading sums the cells. Updating
+ * neither locks nor allocates.
+ */
+public class StripedCounter {
+	
+	/** Longs per cell: one 64 byte cache line. */
+	private static final int PADDING = 8;
+	
+	private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+	
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+	
+	public void increment() {
+		add(1);
+	}
+	
+	public void add(long delta) {
+		int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		cells.getAndAdd(stripe * PADDING, delta);
+	}
+	
+	/**
+	 * @return The current total. Not an atomic snapshot while updates are in progress.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+	
+	/**
+	 * @return The smallest power of two of at least twice the number of
+	 *         processors, at most 64
+	 */
+	private static int stripes(int processors) {
+		int stripes = 1;
+		while (stripes < processors * 2 && stripes < 64) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+}
@@ -0,0 +1,128 @@
+package com.coalmine.connector.notification;
+
+/**
+ * Computes a stable fingerprint for a notification from its severity, the
+ * class it was raised in, a template of its message and its top stack frames.
+ * Numbers, hex identifiers and quoted values in the message are masked, so
+ * "User 12 not found" and "User 42 not found" share a fingerprint. Frames are
+ * hashed as they are, so the same exception thrown from different lines does not.
+ */
+final class Fingerprint {
+	
+	/** Number of stack frames that contribute to the fingerprint. */
+	static final int TOP_FRAMES = 5;
+	
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	private long hash = FNV_OFFSET_BASIS;
+	
+	private Fingerprint() {
+	}
+	
+	static String of(Severity severity, String className, String message, String stackTrace) {
+		Fingerprint fingerprint = new Fingerprint();
+		fingerprint.add(severity == null ? null : severity.name());
+		fingerprint.add(className);
+		fingerprint.addTemplate(message);
+		fingerprint.addLines(stackTrace, TOP_FRAMES);
+		return Long.toHexString(fingerprint.hash);
+	}
+	
+	/**
+	 * Same as of() with a rendered stack trace, but renders only the top frames.
+	 */
+	static String of(Severity severity, String className, String message, StackTraceElement[] frames) {
+		StackFrameCache cache = StackFrameCache.getShared();
+		StringBuilder top = new StringBuilder(TOP_FRAMES * 64);
+		for (int i = 0; i < frames.length && i < TOP_FRAMES; i++) {
+			top.append(cache.render(frames[i]));
+			top.append('\n');
+		}
+		return of(severity, className, message, top.toString());
+	}
+	
+	private void add(String value) {
+		if (value != null) {
+			for (int i = 0; i < value.length(); i++) {
+				update(value.charAt(i));
+			}
+		}
+		update('\u0000');
+	}
+	
+	/**
+	 * Hash the first maxLines lines of the text unchanged.
+	 */
+	private void addLines(String text, int maxLines) {
+		if (text != null) {
+			int lines = 0;
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				if (c == '\n' && ++lines >= maxLines) {
+					break;
+				}
+				update(c);
+			}
+		}
+		update('\u0000');
+	}
+	
+	/**
+	 * Hash the text with variable parts masked.
+	 */
+	private void addTemplate(String text) {
+		if (text == null) {
+			update('\u0000');
+			return;
+		}
+		
+		int length = text.length();
+		int i = 0;
+		while (i < length) {
+			char c = text.charAt(i);
+			
+			if (c == '\'' || c == '"') {
+				int close = text.indexOf(c, i + 1);
+				int newline = text.indexOf('\n', i + 1);
+				if (close > i && (newline == -1 || close < newline)) {
+					update('?');
+					i = close + 1;
+					continue;
+				}
+			}
+			
+			if (isHexDigit(c)) {
+				int end = i;
+				boolean hasDigit = false;
+				while (end < length && isHexDigit(text.charAt(end))) {
+					hasDigit |= Character.isDigit(text.charAt(end));
+					end++;
+				}
+				if (hasDigit && (i == 0 || !Character.isLetter(text.charAt(i - 1)))) {
+					update('#');
+				} else {
+					for (int j = i; j < end; j++) {
+						update(text.charAt(j));
+					}
+				}
+				i = end;
+				continue;
+			}
+			
+			update(c);
+			i++;
+		}
+		update('\u0000');
+	}
+	
+	private void update(char c) {
+		hash ^= c;
+		hash *= FNV_PRIME;
+	}
+	
+	private static boolean isHexDigit(char c) {
+		return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+	}
+}
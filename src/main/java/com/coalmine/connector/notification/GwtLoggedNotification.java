@@ -4,7 +4,9 @@ import java.util.LinkedList;
 import java.util.List;
 
 import com.google.gson.Gson;
+import com.google.gson.annotations.JsonAdapter;
 
+@JsonAdapter(LoggedNotificationTypeAdapter.class)
 public class GwtLoggedNotification extends LoggedNotification {
 
 	protected static final String[] GWT_IGNORE_FILES = {"StackTraceCreator.java", "Exceptions.java"};
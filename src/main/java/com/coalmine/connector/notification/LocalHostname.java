@@ -0,0 +1,154 @@
+package com.coalmine.connector.notification;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Caches the name of the local machine so that building a notification does
+ * not wait on a name lookup. The name is resolved on a background thread when
+ * a connector starts, and again whenever the cached value is older than the
+ * refresh interval. Notifications built before the first lookup completes
+ * wait for it, but for no longer than FIRST_LOOKUP_WAIT after it began; after
+ * that the hostname is null until it is known. Where threads cannot be
+ * started, such as on Google App Engine, the lookup runs on the calling
+ * thread instead.
+ * 
+ * The lookup can be skipped altogether by setting an override, either with
+ * setOverride() or the coalmine.hostname system property.
+ */
+public final class LocalHostname {
+	
+	/** Default number of milliseconds between lookups: 10 minutes. */
+	public static final long DEFAULT_REFRESH_INTERVAL = 10 * 60 * 1000;
+	
+	/** Maximum milliseconds notifications wait for the first lookup. */
+	public static final long FIRST_LOOKUP_WAIT = 1000;
+	
+	/** System property that overrides the looked up hostname. */
+	public static final String OVERRIDE_PROPERTY = "coalmine.hostname";
+	
+	private static volatile String override = System.getProperty(OVERRIDE_PROPERTY);
+	
+	private static volatile String resolved;
+	
+	/** When the last lookup finished, or 0 if none has. */
+	private static volatile long resolvedAt;
+	
+	private static volatile long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+	
+	private static final AtomicBoolean resolving = new AtomicBoolean();
+	
+	/** Released when the first lookup finishes. */
+	private static volatile CountDownLatch firstLookup = new CountDownLatch(1);
+	
+	/** When waiting for the first lookup stops, or 0 if it has not begun. */
+	private static volatile long firstLookupDeadline;
+	
+	private LocalHostname() {
+	}
+	
+	/**
+	 * Get the hostname. Starts a background lookup if the cached name is
+	 * missing or out of date, and only blocks, briefly, while the first lookup
+	 * is running.
+	 * 
+	 * @return The override, the cached hostname, or null if it is not known yet
+	 */
+	public static String get() {
+		String value = override;
+		if (value != null) {
+			return value;
+		}
+		
+		if (System.currentTimeMillis() - resolvedAt > refreshInterval) {
+			resolveAsync();
+		}
+		
+		if (resolvedAt == 0) {
+			awaitFirstLookup();
+		}
+		return resolved;
+	}
+	
+	private static void awaitFirstLookup() {
+		long wait = firstLookupDeadline - System.currentTimeMillis();
+		if (wait <= 0) {
+			return;
+		}
+		
+		try {
+			firstLookup.await(wait, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Start a background lookup of the hostname, unless one is already running
+	 * or an override is set.
+	 */
+	public static void resolveAsync() {
+		if (override != null || !resolving.compareAndSet(false, true)) {
+			return;
+		}
+		
+		if (resolvedAt == 0) {
+			firstLookupDeadline = System.currentTimeMillis() + FIRST_LOOKUP_WAIT;
+		}
+		final CountDownLatch done = firstLookup;
+		Runnable lookup = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					resolved = InetAddress.getLocalHost().getHostName();
+				} catch (UnknownHostException e) {
+					// Silently ignore; not required
+				} catch (SecurityException e) {
+					// Not allowed to look it up; not required either
+				} finally {
+					resolvedAt = System.currentTimeMillis();
+					resolving.set(false);
+					done.countDown();
+				}
+			}
+		};
+		try {
+			Thread thread = new Thread(lookup, "coalmine-hostname");
+			thread.setDaemon(true);
+			thread.setContextClassLoader(null);
+			thread.start();
+		} catch (RuntimeException e) {
+			// Threads are not allowed here; look it up ourselves.
+			lookup.run();
+		}
+	}
+	
+	/**
+	 * Report this hostname instead of looking one up.
+	 * 
+	 * @param hostname The hostname to report, or null to go back to lookups
+	 */
+	public static void setOverride(String hostname) {
+		override = hostname;
+	}
+	
+	/**
+	 * @param refreshInterval Milliseconds after which the hostname is looked up again
+	 */
+	public static void setRefreshInterval(long refreshInterval) {
+		LocalHostname.refreshInterval = refreshInterval;
+	}
+	
+	/**
+	 * Forget the cached hostname, as if no lookup had run. For tests.
+	 */
+	static void reset() {
+		resolved = null;
+		resolvedAt = 0;
+		firstLookupDeadline = 0;
+		firstLookup = new CountDownLatch(1);
+	}
+}
@@ -1,21 +1,22 @@
 package com.coalmine.connector.notification;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 
 import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.annotations.JsonAdapter;
 import com.google.gson.annotations.SerializedName;
 
 /**
  * An application notification.
  */
+@JsonAdapter(LoggedNotificationTypeAdapter.class)
 public class LoggedNotification extends Notification {
 
 	/** The application environment. E.g., production or staging */
@@ -25,9 +26,19 @@ public class LoggedNotification extends Notification {
 	/** Free text message */
 	protected String message;
 
-	/** Stack trace as a String. */
+	/** Stack trace as a String. Rendered from frames when first needed. */
 	@SerializedName("stack_trace")
 	protected String stackTrace;
+	
+	/**
+	 * Stack frames not yet rendered into stackTrace. Rendering is left until
+	 * the notification is serialized, usually on a worker thread, so the
+	 * thread that hit the error only pays for capturing the frames.
+	 */
+	protected transient StackTraceElement[] frames;
+	
+	/** Put in front of each rendered frame. */
+	protected transient String framePrefix = "";
 
 	/** Thread that triggered the notification. */
 	@SerializedName("thread_id")
@@ -43,7 +54,11 @@ public class LoggedNotification extends Notification {
 	/** Severity of this notification. */
 	protected Severity severity = Severity.ERROR;
 
-	/** A map of server variables. */
+	/**
+	 * A map of server variables. By default this is the shared, immutable
+	 * ServerProperties snapshot.
+	 */
+	@JsonAdapter(ServerPropertiesTypeAdapter.class)
 	protected Map<String, String> server;
 
 	/**
@@ -78,7 +93,16 @@ public class LoggedNotification extends Notification {
 	/** URL of the resource that triggered the notification (for web apps). */
 	protected String url;
 
-	/** Responsible for converting self to JSON */
+	/** Cached result of getFingerprint(). */
+	protected transient String fingerprint;
+	
+	/** Size budgets applied while the notification is built. */
+	protected transient PayloadLimits limits = PayloadLimits.getDefault();
+	
+	/** Characters of the size budget used so far. */
+	protected transient int used;
+
+	/** Responsible for converting self to JSON. Shared by default. */
 	protected transient Gson gson;
 
 	/**
@@ -106,7 +130,7 @@ public class LoggedNotification extends Notification {
 	 *            The thrown exception
 	 */
 	public LoggedNotification(Throwable ex) {
-		this(ex, new Gson());
+		this(ex, NotificationGson.get());
 	}
 
 	/**
@@ -120,11 +144,7 @@ public class LoggedNotification extends Notification {
 
 		threadId = Thread.currentThread().getId();
 
-		try {
-			hostname = InetAddress.getLocalHost().getHostName();
-		} catch (UnknownHostException e) {
-			// Silently ignore; not required
-		}
+		hostname = LocalHostname.get();
 
 		captureServer();
 	}
@@ -133,29 +153,56 @@ public class LoggedNotification extends Notification {
 	 * Construct an empty Notification.
 	 */
 	public LoggedNotification() {
-		this(new Gson());
+		this(NotificationGson.get());
 	}
 
 	@Override
 	public Map<String, Object> getQueryParams() {
+		renderStackTrace();
 		Map<String, Object> params = new HashMap<String, Object>();
 		params.put("json", gson.toJson(this));
 		return params;
 	}
 
+	@Override
+	public void writeJson(Appendable out) throws IOException {
+		renderStackTrace();
+		try {
+			gson.toJson(this, out);
+		} catch (JsonIOException e) {
+			throw new IOException("Unable to serialize notification", e);
+		}
+	}
+
+	@Override
+	public String getFingerprint() {
+		if (fingerprint == null) {
+			StackTraceElement[] unrendered = frames;
+			fingerprint = unrendered != null
+					? Fingerprint.of(severity, className, message, unrendered)
+					: Fingerprint.of(severity, className, message, stackTrace);
+		}
+		return fingerprint;
+	}
+
 	@Override
 	public void setApplicationEnvironment(String applicationEnvironment) {
 		this.applicationEnvironment = applicationEnvironment;
 	}
 
 	/**
-	 * Set the notification's message.
+	 * Set the notification's message, truncated and charged to the size
+	 * budget like other captured values.
 	 * 
 	 * @param message
 	 *            The message to set
 	 */
 	public void setMessage(String message) {
-		this.message = message;
+		// A message set earlier, e.g. from the exception, no longer counts.
+		if (this.message != null) {
+			used -= this.message.length();
+		}
+		this.message = capture(message);
 	}
 
 	/**
@@ -184,14 +231,36 @@ public class LoggedNotification extends Notification {
 
 	/**
 	 * @param environment
-	 * 				The environment of the notification
+	 * 				The environment of the notification. Entries are copied
+	 * 				within the PayloadLimits.
 	 */
 	public void setEnvironment(Map<String, String> environment) {
-		this.environment = environment;
+		if (environment == null) {
+			this.environment = null;
+			return;
+		}
+		this.environment = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : environment.entrySet()) {
+			capture(entry.getKey(), entry.getValue());
+		}
 	}
 	
 	/**
-	 * Set the HTTP request object. This is only used by web apps.
+	 * Use other size budgets than the default. Call before setting the
+	 * request, since limits are applied as data is captured.
+	 * 
+	 * @param limits
+	 *            The limits for this notification
+	 */
+	public void setLimits(PayloadLimits limits) {
+		this.limits = limits;
+		used = 0;
+		captureServer();
+	}
+	
+	/**
+	 * Set the HTTP request object. This is only used by web apps. Parameters
+	 * and headers are captured within the PayloadLimits.
 	 * 
 	 * @param request
 	 *            The current HTTP request
@@ -200,10 +269,19 @@ public class LoggedNotification extends Notification {
 	public void setRequest(ServletRequest request) {
 
 		StringBuilder sb = new StringBuilder();
+		int count = 0;
 		Enumeration<String> names = request.getParameterNames();
+		parameters:
 		while (names.hasMoreElements()) {
 			String name = names.nextElement();
+			if (!limits.isCaptured(name)) {
+				continue;
+			}
 			for (String value : request.getParameterValues(name)) {
+				value = limits.truncate(value);
+				if (count++ >= limits.getMaxParameters() || !charge(name.length() + value.length() + 2)) {
+					break parameters;
+				}
 				sb.append(name);
 				sb.append("=");
 				sb.append(value);
@@ -216,52 +294,92 @@ public class LoggedNotification extends Notification {
 			parameters = parameters.substring(0, parameters.length() - 1);
 		}
 
-		ipAddress = request.getRemoteAddr();
+		ipAddress = capture(request.getRemoteAddr());
 
 		environment = new HashMap<String, String>();
-		environment.put("Character Encoding", request.getCharacterEncoding());
-		environment.put("Content Type", request.getContentType());
-		environment.put("Content Length", request.getContentLength() + "");
-		environment.put("Local Address", request.getLocalAddr());
-		environment.put("Local Name", request.getLocalName());
-		environment.put("Local Port", request.getLocalPort() + "");
-		environment.put("Protocol", request.getProtocol());
-		environment.put("Remote Address", request.getRemoteAddr());
-		environment.put("Remote Host", request.getRemoteHost());
-		environment.put("Scheme", request.getScheme());
-		environment.put("Server Name", request.getServerName());
+		capture("Character Encoding", request.getCharacterEncoding());
+		capture("Content Type", request.getContentType());
+		capture("Content Length", request.getContentLength() + "");
+		capture("Local Address", request.getLocalAddr());
+		capture("Local Name", request.getLocalName());
+		capture("Local Port", request.getLocalPort() + "");
+		capture("Protocol", request.getProtocol());
+		capture("Remote Address", request.getRemoteAddr());
+		capture("Remote Host", request.getRemoteHost());
+		capture("Scheme", request.getScheme());
+		capture("Server Name", request.getServerName());
 		if (request.getLocale() != null) {
-			environment.put("Locale", request.getLocale().toString());
+			capture("Locale", request.getLocale().toString());
 		}
 
 		if (request instanceof HttpServletRequest) {
 			HttpServletRequest http = (HttpServletRequest) request;
-			referrer = http.getHeader("Referer");
-			userAgent = http.getHeader("User-Agent");
+			referrer = capture(http.getHeader("Referer"));
+			userAgent = capture(http.getHeader("User-Agent"));
 			if (http.getRequestURL() != null) {
-				url = http.getRequestURL().toString();
+				url = capture(http.getRequestURL().toString());
 			}
-			environment.put("Query String", http.getQueryString());
-			environment.put("HTTP Method", http.getMethod());
-			environment.put("Auth Type", http.getAuthType());
+			capture("Query String", http.getQueryString());
+			capture("HTTP Method", http.getMethod());
+			capture("Auth Type", http.getAuthType());
 
 			Enumeration<String> headers = http.getHeaderNames();
 			String name;
+			count = 0;
 			while (headers.hasMoreElements()) {
 				name = headers.nextElement();
-				environment.put(name + " Header", http.getHeader(name));
+				if (!limits.isCaptured(name)) {
+					continue;
+				}
+				String value = limits.truncate(http.getHeader(name));
+				int size = name.length() + (value == null ? 0 : value.length()) + 16;
+				if (count++ >= limits.getMaxHeaders() || !charge(size)) {
+					break;
+				}
+				environment.put(name + " Header", value);
 			}
 		}
 	}
 
 	protected void captureServer() {
-		server = new HashMap<String, String>();
-		Properties properties = System.getProperties();
-		for (Object property : properties.keySet()) {
-			server.put(property.toString(),
-					properties.getProperty(property.toString()));
+		ServerProperties snapshot = ServerProperties.get().limit(limits);
+		// The snapshot is shared, so this costs little after the first notification.
+		server = charge(snapshot.toJson().length()) ? snapshot : null;
+	}
+	
+	/**
+	 * Truncate a value and charge it to the size budget.
+	 * 
+	 * @return The value, or null if it does not fit
+	 */
+	protected String capture(String value) {
+		value = limits.truncate(value);
+		return value == null || charge(value.length()) ? value : null;
+	}
+	
+	/**
+	 * Truncate a value and put it in the environment, if it fits in the size budget.
+	 */
+	protected void capture(String name, String value) {
+		value = limits.truncate(value);
+		if (charge(name.length() + (value == null ? 0 : value.length()) + 6)) {
+			environment.put(name, value);
 		}
 	}
+	
+	/**
+	 * Use part of the size budget.
+	 * 
+	 * @param size Number of characters about to be added
+	 * @return False, using nothing, if that would go over the budget
+	 */
+	protected boolean charge(int size) {
+		if (used + size > limits.getMaxBytes()) {
+			return false;
+		}
+		used += size;
+		return true;
+	}
 
 	public void setThreadId(long threadId) {
 		this.threadId = threadId;
@@ -269,6 +387,38 @@ public class LoggedNotification extends Notification {
 	
 	public void setStackTrace(String stackTrace) {
 		this.stackTrace = stackTrace;
+		this.frames = null;
+	}
+	
+	/**
+	 * Set the stack trace from raw frames. The frames are rendered to text
+	 * only when the notification is serialized.
+	 * 
+	 * @param frames The stack frames, innermost first
+	 */
+	public void setStackTrace(StackTraceElement[] frames) {
+		setStackTrace(frames, "");
+	}
+	
+	/**
+	 * Set the stack trace from raw frames, each rendered behind a prefix
+	 * such as "at ".
+	 * 
+	 * @param frames The stack frames, innermost first
+	 * @param framePrefix Put in front of each rendered frame
+	 */
+	public void setStackTrace(StackTraceElement[] frames, String framePrefix) {
+		this.frames = frames;
+		this.framePrefix = framePrefix;
+		this.stackTrace = null;
+	}
+	
+	/**
+	 * @return The stack trace as text, rendering it from the frames if needed
+	 */
+	public String getStackTrace() {
+		renderStackTrace();
+		return stackTrace;
 	}
 	public void setLineNumber(int lineNumber) {
 		this.lineNumber = lineNumber;
@@ -283,7 +433,7 @@ public class LoggedNotification extends Notification {
 	protected void setException(Throwable ex) {
 		ex = getExceptionCause(ex);
 
-		message = String.format("[%s] %s", ex.getClass().getSimpleName(), ex.getLocalizedMessage());
+		setMessage("[" + ex.getClass().getSimpleName() + "] " + ex.getLocalizedMessage());
 
 		setException(extractStackTraceElements(ex));
 	}
@@ -296,13 +446,56 @@ public class LoggedNotification extends Notification {
 			method = lines[0].getMethodName();
 		}
 
-		StringBuilder sb = new StringBuilder();
-		for (StackTraceElement el : lines) {
-			sb.append(el.toString());
+		setStackTrace(lines);
+	}
+	
+	/**
+	 * Render pending frames into stackTrace, one frame per line. Traces longer
+	 * than the frame limit keep their head and tail, and rendering stops when
+	 * the size budget runs out.
+	 */
+	protected void renderStackTrace() {
+		StackTraceElement[] lines = frames;
+		if (lines == null) {
+			return;
+		}
+
+		int maxFrames = limits.getMaxFrames();
+		int tail = lines.length > maxFrames ? maxFrames / 4 : 0;
+		int head = Math.min(lines.length, maxFrames) - tail;
+		int available = limits.getMaxBytes() - used;
+
+		// Room kept for the closing marker, should the budget run out.
+		int reserve = ("... " + (head + tail) + " more frames omitted\n").length();
+
+		String prefix = framePrefix;
+		StackFrameCache cache = StackFrameCache.getShared();
+		StringBuilder sb = new StringBuilder(Math.min(head + tail, 1024) * 64);
+		int rendered = 0;
+		for (int i = 0; i < head + tail; i++) {
+			String line = cache.render(lines[i < head ? i : lines.length - tail + i - head]);
+			if (sb.length() + prefix.length() + line.length() + 1 + reserve > available) {
+				break;
+			}
+			sb.append(prefix);
+			sb.append(line);
 			sb.append("\n");
+			rendered++;
+			if (rendered == head && lines.length > head + tail) {
+				String omitted = "... " + (lines.length - head - tail) + " frames omitted\n";
+				if (sb.length() + omitted.length() + reserve > available) {
+					break;
+				}
+				sb.append(omitted);
+			}
+		}
+		if (rendered < head + tail && sb.length() + reserve <= available) {
+			sb.append("... ").append(head + tail - rendered).append(" more frames omitted\n");
 		}
 
+		used += sb.length();
 		stackTrace = sb.toString();
+		frames = null;
 	}
 
 	protected Throwable getExceptionCause(Throwable ex) {
@@ -0,0 +1,155 @@
+package com.coalmine.connector.notification;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Streams a LoggedNotification to and from JSON without reflection. Fields
+ * are written in the order, and under the names, that Gson's reflective
+ * serialization used, and null fields are left out unless the writer
+ * serializes nulls.
+ * 
+ * Subclasses that add serialized fields need their own adapter.
+ */
+public class LoggedNotificationTypeAdapter extends TypeAdapter<LoggedNotification> {
+	
+	private final ServerPropertiesTypeAdapter serverAdapter = new ServerPropertiesTypeAdapter();
+	
+	@Override
+	public void write(JsonWriter out, LoggedNotification value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+			return;
+		}
+		
+		String stackTrace = value.getStackTrace();
+		
+		out.beginObject();
+		out.name("app_environment").value(value.applicationEnvironment);
+		out.name("message").value(value.message);
+		out.name("stack_trace").value(stackTrace);
+		out.name("thread_id").value(value.threadId);
+		out.name("hostname").value(value.hostname);
+		out.name("class").value(value.className);
+		out.name("severity").value(value.severity == null ? null : value.severity.name());
+		if (value.server != null || out.getSerializeNulls()) {
+			out.name("server");
+			serverAdapter.write(out, value.server);
+		}
+		if (value.environment != null || out.getSerializeNulls()) {
+			out.name("environment");
+			writeMap(out, value.environment);
+		}
+		out.name("file").value(value.file);
+		out.name("line_number").value(value.lineNumber);
+		out.name("method").value(value.method);
+		out.name("parameters").value(value.parameters);
+		out.name("ipAddress").value(value.ipAddress);
+		out.name("referrer").value(value.referrer);
+		out.name("user_agent").value(value.userAgent);
+		out.name("url").value(value.url);
+		
+		// Fields declared by Notification.
+		Notification base = value;
+		out.name("applicationEnvironment").value(base.applicationEnvironment);
+		out.name("version").value(base.version);
+		out.name("user_id").value(base.userId);
+		out.name("occurrences").value(base.occurrences);
+		out.name("first_seen").value(base.firstSeen);
+		out.name("last_seen").value(base.lastSeen);
+		out.name("sample_rate").value(base.sampleRate);
+		out.endObject();
+	}
+	
+	@Override
+	public LoggedNotification read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		
+		LoggedNotification value = new LoggedNotification();
+		Notification base = value;
+		value.server = null;
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				continue;
+			}
+			
+			if ("app_environment".equals(name)) {
+				value.applicationEnvironment = in.nextString();
+			} else if ("message".equals(name)) {
+				value.message = in.nextString();
+			} else if ("stack_trace".equals(name)) {
+				value.setStackTrace(in.nextString());
+			} else if ("thread_id".equals(name)) {
+				value.threadId = in.nextLong();
+			} else if ("hostname".equals(name)) {
+				value.hostname = in.nextString();
+			} else if ("class".equals(name)) {
+				value.className = in.nextString();
+			} else if ("severity".equals(name)) {
+				value.severity = Severity.valueOf(in.nextString());
+			} else if ("server".equals(name)) {
+				value.server = serverAdapter.read(in);
+			} else if ("environment".equals(name)) {
+				value.environment = serverAdapter.read(in);
+			} else if ("file".equals(name)) {
+				value.file = in.nextString();
+			} else if ("line_number".equals(name)) {
+				value.lineNumber = in.nextInt();
+			} else if ("method".equals(name)) {
+				value.method = in.nextString();
+			} else if ("parameters".equals(name)) {
+				value.parameters = in.nextString();
+			} else if ("ipAddress".equals(name)) {
+				value.ipAddress = in.nextString();
+			} else if ("referrer".equals(name)) {
+				value.referrer = in.nextString();
+			} else if ("user_agent".equals(name)) {
+				value.userAgent = in.nextString();
+			} else if ("url".equals(name)) {
+				value.url = in.nextString();
+			} else if ("applicationEnvironment".equals(name)) {
+				base.applicationEnvironment = in.nextString();
+			} else if ("version".equals(name)) {
+				base.version = in.nextString();
+			} else if ("user_id".equals(name)) {
+				base.userId = in.nextString();
+			} else if ("occurrences".equals(name)) {
+				base.occurrences = in.nextInt();
+			} else if ("first_seen".equals(name)) {
+				base.firstSeen = in.nextLong();
+			} else if ("last_seen".equals(name)) {
+				base.lastSeen = in.nextLong();
+			} else if ("sample_rate".equals(name)) {
+				base.sampleRate = in.nextDouble();
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+		return value;
+	}
+	
+	private static void writeMap(JsonWriter out, Map<String, String> map) throws IOException {
+		if (map == null) {
+			out.nullValue();
+			return;
+		}
+		
+		out.beginObject();
+		for (Map.Entry<String, String> entry : map.entrySet()) {
+			out.name(String.valueOf(entry.getKey())).value(entry.getValue());
+		}
+		out.endObject();
+	}
+}
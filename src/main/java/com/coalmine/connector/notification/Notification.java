@@ -1,5 +1,6 @@
 package com.coalmine.connector.notification;
 
+import java.io.IOException;
 import java.util.Map;
 
 import com.google.gson.annotations.SerializedName;
@@ -20,6 +21,21 @@ public abstract class Notification {
 	@SerializedName("user_id")
 	protected String userId;
 	
+	/** Number of times this notification occurred, when it summarizes repeats. */
+	protected Integer occurrences;
+	
+	/** When the first of the summarized occurrences happened (epoch millis). */
+	@SerializedName("first_seen")
+	protected Long firstSeen;
+	
+	/** When the last of the summarized occurrences happened (epoch millis). */
+	@SerializedName("last_seen")
+	protected Long lastSeen;
+	
+	/** Fraction of similar events that were sampled, when less than all of them. */
+	@SerializedName("sample_rate")
+	protected Double sampleRate;
+	
 	/**
 	 * Get the fields to send to Coalmine.
 	 * 
@@ -27,6 +43,19 @@ public abstract class Notification {
 	 */
 	public abstract Map<String, Object> getQueryParams();
 
+	/**
+	 * Write this notification as JSON. Subclasses should override this to
+	 * stream their JSON rather than building it as a String; by default the
+	 * json field of getQueryParams() is written.
+	 * 
+	 * @param out Where to write the JSON
+	 * @throws IOException If writing fails
+	 */
+	public void writeJson(Appendable out) throws IOException {
+		Object json = getQueryParams().get("json");
+		out.append(json == null ? "null" : json.toString());
+	}
+
 	/**
 	 * Set the application environment
 	 * 
@@ -48,4 +77,48 @@ public abstract class Notification {
 	public void setUserId(String userId) {
 		this.userId = userId;
 	}
+	
+	/**
+	 * Get a value identifying notifications caused by the same problem. Repeats
+	 * of a fingerprint can be aggregated into a single notification.
+	 * 
+	 * @return The fingerprint, or null if this notification is never aggregated
+	 */
+	public String getFingerprint() {
+		return null;
+	}
+	
+	/**
+	 * Mark this notification as a summary of repeated occurrences.
+	 * 
+	 * @param occurrences The number of occurrences summarized
+	 * @param firstSeen When the first occurrence happened (epoch millis)
+	 * @param lastSeen When the last occurrence happened (epoch millis)
+	 */
+	public void setOccurrences(int occurrences, long firstSeen, long lastSeen) {
+		this.occurrences = occurrences;
+		this.firstSeen = firstSeen;
+		this.lastSeen = lastSeen;
+	}
+	
+	/**
+	 * Record the rate this notification was sampled at, so Coalmine can scale
+	 * counts back up.
+	 * 
+	 * @param sampleRate Fraction of similar events kept. 1 means all of them.
+	 */
+	public void setSampleRate(double sampleRate) {
+		this.sampleRate = sampleRate < 1.0 ? sampleRate : null;
+	}
+	
+	public Double getSampleRate() {
+		return sampleRate;
+	}
+	
+	/**
+	 * @return True if this notification summarizes repeated occurrences
+	 */
+	public boolean isOccurrenceSummary() {
+		return occurrences != null;
+	}
 }
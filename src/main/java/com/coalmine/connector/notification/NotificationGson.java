@@ -0,0 +1,23 @@
+package com.coalmine.connector.notification;
+
+import com.google.gson.Gson;
+
+/**
+ * The Gson instance shared by notifications that are not given their own.
+ * Gson is thread-safe and caches its type adapters, so sharing one instance
+ * saves building it, and looking up adapters, for every notification.
+ */
+public final class NotificationGson {
+	
+	private static final Gson GSON = new Gson();
+	
+	private NotificationGson() {
+	}
+	
+	/**
+	 * @return The shared Gson instance
+	 */
+	public static Gson get() {
+		return GSON;
+	}
+}
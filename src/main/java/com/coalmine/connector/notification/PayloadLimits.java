@@ -0,0 +1,222 @@
+package com.coalmine.connector.notification;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Size budgets for a notification, so one pathological error cannot produce
+ * a multi-megabyte payload. The limits are applied while the notification is
+ * built: request values (URL, headers, parameters and the rest) and
+ * environment entries are counted and cut off as they are copied, server
+ * properties are filtered once per snapshot, and the stack trace is rendered
+ * only up to what is left of the budget.
+ *
+ * Sizes are counted in characters, which for typical ASCII payloads is the
+ * number of bytes sent.
+ *
+ * Headers, parameters and server properties can be filtered by name with
+ * comma separated allow and deny lists. Names are compared ignoring case, and
+ * an entry ending in "*" matches every name starting with the rest of it.
+ * Denied names are never captured; when an allow list is set, only names on
+ * it are captured.
+ *
+ * Notifications use the shared default limits unless given their own with
+ * LoggedNotification.setLimits().
+ */
+public class PayloadLimits {
+	
+	/** Default size budget for a notification: 256 KB. */
+	public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+	
+	/** Default number of stack frames rendered. */
+	public static final int DEFAULT_MAX_FRAMES = 256;
+	
+	/** Default number of headers and of parameters captured. */
+	public static final int DEFAULT_MAX_ENTRIES = 100;
+	
+	/** Default length of a single header, parameter or property value. */
+	public static final int DEFAULT_MAX_VALUE_LENGTH = 4096;
+	
+	/** Marks a value that was cut short. */
+	static final String ELLIPSIS = "...";
+	
+	private static final PayloadLimits DEFAULT = new PayloadLimits();
+	
+	private volatile int maxBytes = DEFAULT_MAX_BYTES;
+	
+	private volatile int maxFrames = DEFAULT_MAX_FRAMES;
+	
+	private volatile int maxHeaders = DEFAULT_MAX_ENTRIES;
+	
+	private volatile int maxParameters = DEFAULT_MAX_ENTRIES;
+	
+	private volatile int maxValueLength = DEFAULT_MAX_VALUE_LENGTH;
+	
+	private volatile String[] allowed = new String[0];
+	
+	private volatile String[] denied = new String[0];
+	
+	/** Changed by every setter, so cached results can tell they are stale. */
+	private volatile int version;
+	
+	/**
+	 * @return The limits used by notifications not given their own
+	 */
+	public static PayloadLimits getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * @param name Name of a header, parameter or server property
+	 * @return True if it may be captured
+	 */
+	public boolean isCaptured(String name) {
+		String[] allow = allowed;
+		String[] deny = denied;
+		if (allow.length == 0 && deny.length == 0) {
+			return true;
+		}
+		
+		String key = name.toLowerCase();
+		return !matches(deny, key) && (allow.length == 0 || matches(allow, key));
+	}
+	
+	/**
+	 * @param value A header, parameter or property value
+	 * @return The value, cut to the maximum value length
+	 */
+	public String truncate(String value) {
+		int max = maxValueLength;
+		if (value == null || value.length() <= max) {
+			return value;
+		}
+		return value.substring(0, max) + ELLIPSIS;
+	}
+	
+	/**
+	 * @param maxBytes Size budget for a notification. Defaults to 256 KB.
+	 */
+	public void setMaxBytes(int maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("Max bytes must be at least 1");
+		}
+		
+		this.maxBytes = maxBytes;
+		version++;
+	}
+	
+	/**
+	 * @param maxFrames Number of stack frames rendered. Longer traces keep
+	 *            their first three quarters and last quarter of this many
+	 *            frames. Defaults to 256.
+	 */
+	public void setMaxFrames(int maxFrames) {
+		if (maxFrames < 1) {
+			throw new IllegalArgumentException("Max frames must be at least 1");
+		}
+		
+		this.maxFrames = maxFrames;
+		version++;
+	}
+	
+	/**
+	 * @param maxHeaders Number of request headers captured. Defaults to 100.
+	 */
+	public void setMaxHeaders(int maxHeaders) {
+		if (maxHeaders < 0) {
+			throw new IllegalArgumentException("Max headers must not be negative");
+		}
+		
+		this.maxHeaders = maxHeaders;
+		version++;
+	}
+	
+	/**
+	 * @param maxParameters Number of request parameter values captured. Defaults to 100.
+	 */
+	public void setMaxParameters(int maxParameters) {
+		if (maxParameters < 0) {
+			throw new IllegalArgumentException("Max parameters must not be negative");
+		}
+		
+		this.maxParameters = maxParameters;
+		version++;
+	}
+	
+	/**
+	 * @param maxValueLength Length of a single header, parameter or property
+	 *            value. Defaults to 4096.
+	 */
+	public void setMaxValueLength(int maxValueLength) {
+		if (maxValueLength < 0) {
+			throw new IllegalArgumentException("Max value length must not be negative");
+		}
+		
+		this.maxValueLength = maxValueLength;
+		version++;
+	}
+	
+	/**
+	 * @param allowed Comma separated names to capture, or null to capture all
+	 *            names not denied
+	 */
+	public void setAllowedKeys(String allowed) {
+		this.allowed = parseKeys(allowed);
+		version++;
+	}
+	
+	/**
+	 * @param denied Comma separated names never to capture, e.g. "Authorization,Cookie"
+	 */
+	public void setDeniedKeys(String denied) {
+		this.denied = parseKeys(denied);
+		version++;
+	}
+	
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+	
+	public int getMaxFrames() {
+		return maxFrames;
+	}
+	
+	public int getMaxHeaders() {
+		return maxHeaders;
+	}
+	
+	public int getMaxParameters() {
+		return maxParameters;
+	}
+	
+	public int getMaxValueLength() {
+		return maxValueLength;
+	}
+	
+	int getVersion() {
+		return version;
+	}
+	
+	private static boolean matches(String[] keys, String key) {
+		for (String candidate : keys) {
+			if (candidate.endsWith("*")
+					? key.startsWith(candidate.substring(0, candidate.length() - 1))
+					: key.equals(candidate)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private static String[] parseKeys(String spec) {
+		List<String> keys = new ArrayList<String>();
+		if (spec != null) {
+			for (String key : spec.split(",")) {
+				if (!key.trim().isEmpty()) {
+					keys.add(key.trim().toLowerCase());
+				}
+			}
+		}
+		return keys.toArray(new String[keys.size()]);
+	}
+}
@@ -0,0 +1,193 @@
+package com.coalmine.connector.notification;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * An immutable snapshot of the system properties, shared by every
+ * notification instead of being copied into each one. The snapshot also
+ * caches its own JSON, so it is only encoded once.
+ * 
+ * The snapshot is taken again when the system properties are replaced or
+ * properties are added or removed. Changes to the value of an existing
+ * property are picked up by a content check every REVALIDATE_INTERVAL, or
+ * immediately by calling refresh().
+ * 
+ * A copy filtered and truncated by PayloadLimits is made once per snapshot
+ * and limits, and shared in the same way.
+ */
+public final class ServerProperties extends AbstractMap<String, String> {
+	
+	/** Milliseconds between checks of whether property values have changed. */
+	static final long REVALIDATE_INTERVAL = 60000;
+	
+	private static volatile ServerProperties current;
+	
+	private final Map<String, String> properties;
+	
+	/** The Properties object this snapshot was taken from. */
+	private final Properties source;
+	
+	private final int sourceSize;
+	
+	private final int sourceHash;
+	
+	private volatile long validatedAt;
+	
+	private volatile String json;
+	
+	/** The last copy made by limit(), with the limits it was made for. */
+	private volatile Limited limited;
+	
+	private ServerProperties(Properties source) {
+		Map<String, String> copy = new TreeMap<String, String>();
+		synchronized (source) {
+			for (Map.Entry<Object, Object> property : source.entrySet()) {
+				copy.put(String.valueOf(property.getKey()), String.valueOf(property.getValue()));
+			}
+			this.sourceSize = source.size();
+			this.sourceHash = source.hashCode();
+		}
+		this.properties = Collections.unmodifiableMap(copy);
+		this.source = source;
+		this.validatedAt = System.currentTimeMillis();
+	}
+	
+	private ServerProperties(ServerProperties snapshot, Map<String, String> properties) {
+		this.properties = Collections.unmodifiableMap(properties);
+		this.source = snapshot.source;
+		this.sourceSize = snapshot.sourceSize;
+		this.sourceHash = snapshot.sourceHash;
+		this.validatedAt = snapshot.validatedAt;
+	}
+	
+	/**
+	 * Get the current snapshot, taking a new one if the system properties
+	 * have changed.
+	 * 
+	 * @return The shared snapshot
+	 */
+	public static ServerProperties get() {
+		ServerProperties snapshot = current;
+		Properties system = System.getProperties();
+		if (snapshot == null || snapshot.source != system || snapshot.sourceSize != system.size()) {
+			return refresh();
+		}
+		
+		long now = System.currentTimeMillis();
+		if (now - snapshot.validatedAt > REVALIDATE_INTERVAL) {
+			if (snapshot.sourceHash != system.hashCode()) {
+				return refresh();
+			}
+			snapshot.validatedAt = now;
+		}
+		
+		return snapshot;
+	}
+	
+	/**
+	 * Take a new snapshot of the system properties. Call this after changing
+	 * the value of a system property that should be reported immediately.
+	 * 
+	 * @return The new snapshot
+	 */
+	public static ServerProperties refresh() {
+		ServerProperties snapshot = new ServerProperties(System.getProperties());
+		current = snapshot;
+		return snapshot;
+	}
+	
+	/**
+	 * @param limits Limits on captured names and value lengths
+	 * @return This snapshot without the properties the limits exclude, and
+	 *         with long values cut short
+	 */
+	ServerProperties limit(PayloadLimits limits) {
+		Limited cached = limited;
+		int version = limits.getVersion();
+		if (cached != null && cached.limits == limits && cached.version == version) {
+			return cached.snapshot;
+		}
+		
+		Map<String, String> copy = new TreeMap<String, String>();
+		for (Map.Entry<String, String> property : properties.entrySet()) {
+			if (limits.isCaptured(property.getKey())) {
+				copy.put(property.getKey(), limits.truncate(property.getValue()));
+			}
+		}
+		
+		ServerProperties snapshot = new ServerProperties(this, copy);
+		limited = new Limited(limits, version, snapshot);
+		return snapshot;
+	}
+	
+	@Override
+	public Set<Map.Entry<String, String>> entrySet() {
+		return properties.entrySet();
+	}
+	
+	@Override
+	public String get(Object key) {
+		return properties.get(key);
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return properties.containsKey(key);
+	}
+	
+	@Override
+	public int size() {
+		return properties.size();
+	}
+	
+	/**
+	 * @return The snapshot as a JSON object, encoded the first time it is needed
+	 */
+	public String toJson() {
+		String encoded = json;
+		if (encoded == null) {
+			StringWriter out = new StringWriter(properties.size() * 48);
+			try {
+				JsonWriter writer = new JsonWriter(out);
+				writer.setHtmlSafe(true);
+				writer.beginObject();
+				for (Map.Entry<String, String> property : properties.entrySet()) {
+					writer.name(property.getKey()).value(property.getValue());
+				}
+				writer.endObject();
+				writer.close();
+			} catch (IOException e) {
+				// StringWriter does not throw
+				throw new IllegalStateException(e);
+			}
+			encoded = out.toString();
+			json = encoded;
+		}
+		
+		return encoded;
+	}
+	
+	private static final class Limited {
+		
+		final PayloadLimits limits;
+		
+		final int version;
+		
+		final ServerProperties snapshot;
+		
+		Limited(PayloadLimits limits, int version, ServerProperties snapshot) {
+			this.limits = limits;
+			this.version = version;
+			this.snapshot = snapshot;
+		}
+	}
+}
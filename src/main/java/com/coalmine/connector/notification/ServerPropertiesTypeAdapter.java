@@ -0,0 +1,54 @@
+package com.coalmine.connector.notification;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the server map of a notification. A shared ServerProperties snapshot
+ * is written from its cached JSON; any other map is written entry by entry.
+ */
+public class ServerPropertiesTypeAdapter extends TypeAdapter<Map<String, String>> {
+	
+	@Override
+	public void write(JsonWriter out, Map<String, String> value) throws IOException {
+		if (value == null) {
+			out.nullValue();
+		} else if (value instanceof ServerProperties) {
+			out.jsonValue(((ServerProperties) value).toJson());
+		} else {
+			out.beginObject();
+			for (Map.Entry<String, String> entry : value.entrySet()) {
+				out.name(entry.getKey()).value(entry.getValue());
+			}
+			out.endObject();
+		}
+	}
+	
+	@Override
+	public Map<String, String> read(JsonReader in) throws IOException {
+		if (in.peek() == JsonToken.NULL) {
+			in.nextNull();
+			return null;
+		}
+		
+		Map<String, String> value = new HashMap<String, String>();
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				value.put(name, null);
+			} else {
+				value.put(name, in.nextString());
+			}
+		}
+		in.endObject();
+		return value;
+	}
+}
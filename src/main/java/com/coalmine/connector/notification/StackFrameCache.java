@@ -0,0 +1,97 @@
+package com.coalmine.connector.notification;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of rendered stack frames. Error traces mostly share the same framework
+ * frames, so rendering them once and looking them up afterwards saves a
+ * format and an allocation per frame.
+ *
+ * The cache is bounded: once it holds maxSize frames, new frames are rendered
+ * but no longer added. The frames that filled it are the ones seen first,
+ * which are usually the common ones.
+ */
+public class StackFrameCache {
+	
+	/** Default number of frames kept. */
+	public static final int DEFAULT_MAX_SIZE = 4096;
+	
+	private static final StackFrameCache SHARED = new StackFrameCache(DEFAULT_MAX_SIZE);
+	
+	private final ConcurrentMap<StackTraceElement, String> frames;
+	
+	private final int maxSize;
+	
+	private final AtomicLong hits = new AtomicLong();
+	
+	private final AtomicLong misses = new AtomicLong();
+	
+	/**
+	 * @param maxSize Maximum number of frames kept
+	 */
+	public StackFrameCache(int maxSize) {
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Max size must not be negative");
+		}
+		
+		this.maxSize = maxSize;
+		this.frames = new ConcurrentHashMap<StackTraceElement, String>(Math.min(maxSize, 256));
+	}
+	
+	/**
+	 * @return The cache used when rendering notifications
+	 */
+	public static StackFrameCache getShared() {
+		return SHARED;
+	}
+	
+	/**
+	 * @param frame A stack frame
+	 * @return The frame rendered as by StackTraceElement.toString()
+	 */
+	public String render(StackTraceElement frame) {
+		String rendered = frames.get(frame);
+		if (rendered != null) {
+			hits.incrementAndGet();
+			return rendered;
+		}
+		
+		misses.incrementAndGet();
+		rendered = frame.toString();
+		// The size check races with other threads; overshooting by a few is fine.
+		if (frames.size() < maxSize) {
+			frames.putIfAbsent(frame, rendered);
+		}
+		return rendered;
+	}
+	
+	public long getHitCount() {
+		return hits.get();
+	}
+	
+	public long getMissCount() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return Number of frames currently cached
+	 */
+	public int getSize() {
+		return frames.size();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * Remove all frames and reset the statistics.
+	 */
+	public void clear() {
+		frames.clear();
+		hits.set(0);
+		misses.set(0);
+	}
+}
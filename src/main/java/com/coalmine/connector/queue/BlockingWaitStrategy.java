@@ -0,0 +1,48 @@
+package com.coalmine.connector.queue;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Blocks the consumer on a lock condition. Uses no CPU while idle. Producers
+ * only take the lock to wake the consumer when it is actually asleep.
+ */
+public class BlockingWaitStrategy implements WaitStrategy {
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	private final Condition notEmpty = lock.newCondition();
+	
+	private volatile int waiters;
+	
+	@Override
+	public void await(MpscRingBuffer<?> buffer, long timeoutNanos) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			waiters++;
+			try {
+				// Re-check under the lock: a producer that saw no waiters may
+				// have added an element just before we registered.
+				if (buffer.isEmpty()) {
+					notEmpty.awaitNanos(timeoutNanos);
+				}
+			} finally {
+				waiters--;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void signal() {
+		if (waiters > 0) {
+			lock.lock();
+			try {
+				notEmpty.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
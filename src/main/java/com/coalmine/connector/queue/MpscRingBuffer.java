@@ -0,0 +1,157 @@
+package com.coalmine.connector.queue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer single-consumer queue backed by a ring
+ * of slots. Each slot carries a sequence number that tells producers and the
+ * consumer whose turn it is to use it, so producers only contend on a single
+ * compare-and-set of the tail counter and never take a lock.
+ * 
+ * offer() does not allocate and simply returns false when the buffer is full.
+ * Only one thread may call poll() and drainTo() at a time.
+ * 
+ * The capacity is rounded up to the next power of two.
+ * 
+ * @param <E> The type of element held
+ */
+public class MpscRingBuffer<E> {
+	
+	private final int capacity;
+	
+	private final int mask;
+	
+	private final AtomicReferenceArray<E> slots;
+	
+	/**
+	 * Sequence number per slot. A slot is free for the producer claiming
+	 * position p when its sequence is p, and holds an element for the consumer
+	 * at position p when its sequence is p + 1.
+	 */
+	private final AtomicLongArray sequences;
+	
+	/** Next position to be claimed by a producer. */
+	private final AtomicLong tail = new AtomicLong();
+	
+	/** Next position to be consumed. Only written by the consumer. */
+	private volatile long head;
+	
+	private final WaitStrategy waitStrategy;
+	
+	public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		if (capacity < 1 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		}
+		
+		this.capacity = nextPowerOfTwo(capacity);
+		this.mask = this.capacity - 1;
+		this.slots = new AtomicReferenceArray<E>(this.capacity);
+		this.sequences = new AtomicLongArray(this.capacity);
+		for (int i = 0; i < this.capacity; i++) {
+			sequences.set(i, i);
+		}
+		this.waitStrategy = waitStrategy;
+	}
+	
+	/**
+	 * Add an element if there is room. Safe to call from any thread.
+	 * 
+	 * @param element The element to add
+	 * @return False if the buffer is full
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException();
+		}
+		
+		while (true) {
+			long position = tail.get();
+			int index = (int) position & mask;
+			long available = sequences.get(index) - position;
+			if (available == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.lazySet(index, element);
+					sequences.set(index, position + 1);
+					waitStrategy.signal();
+					return true;
+				}
+			} else if (available < 0) {
+				// The consumer has not freed this slot yet; we are full.
+				return false;
+			}
+			// Another producer claimed this position first; try the next one.
+		}
+	}
+	
+	/**
+	 * Remove the next element. Consumer only.
+	 * 
+	 * @return The element, or null if the buffer is empty
+	 */
+	public E poll() {
+		long position = head;
+		int index = (int) position & mask;
+		if (sequences.get(index) != position + 1) {
+			return null;
+		}
+		
+		E element = slots.get(index);
+		slots.lazySet(index, null);
+		sequences.lazySet(index, position + capacity);
+		head = position + 1;
+		return element;
+	}
+	
+	/**
+	 * Move up to max elements into the collection. Consumer only.
+	 * 
+	 * @return The number of elements moved
+	 */
+	public int drainTo(Collection<? super E> target, int max) {
+		int drained = 0;
+		E element;
+		while (drained < max && (element = poll()) != null) {
+			target.add(element);
+			drained++;
+		}
+		
+		return drained;
+	}
+	
+	/**
+	 * Wait, using the buffer's wait strategy, until an element may be
+	 * available or the timeout expires. Consumer only.
+	 * 
+	 * @param timeoutNanos Maximum time to wait
+	 */
+	public void await(long timeoutNanos) throws InterruptedException {
+		if (isEmpty()) {
+			waitStrategy.await(this, timeoutNanos);
+		}
+	}
+	
+	public boolean isEmpty() {
+		long position = head;
+		return sequences.get((int) position & mask) != position + 1;
+	}
+	
+	/**
+	 * @return An estimate of the number of queued elements
+	 */
+	public int size() {
+		long size = tail.get() - head;
+		return (int) Math.max(0, Math.min(size, capacity));
+	}
+	
+	public int capacity() {
+		return capacity;
+	}
+	
+	private static int nextPowerOfTwo(int value) {
+		int highest = Integer.highestOneBit(value);
+		return highest == value ? value : highest << 1;
+	}
+}
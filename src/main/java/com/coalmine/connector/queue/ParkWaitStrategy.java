@@ -0,0 +1,54 @@
+package com.coalmine.connector.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the consumer for increasing intervals, up to a maximum, while the
+ * buffer is empty. Producers never signal, so offering stays entirely
+ * lock-free; the price is up to maxParkNanos of extra latency and periodic
+ * wake-ups while idle.
+ */
+public class ParkWaitStrategy implements WaitStrategy {
+	
+	/** Default longest single park: one millisecond. */
+	public static final long DEFAULT_MAX_PARK_NANOS = 1000000;
+	
+	private static final long MIN_PARK_NANOS = 1000;
+	
+	private final long maxParkNanos;
+	
+	public ParkWaitStrategy() {
+		this(DEFAULT_MAX_PARK_NANOS);
+	}
+	
+	public ParkWaitStrategy(long maxParkNanos) {
+		if (maxParkNanos < MIN_PARK_NANOS) {
+			throw new IllegalArgumentException("Max park time must be at least " + MIN_PARK_NANOS + "ns");
+		}
+		
+		this.maxParkNanos = maxParkNanos;
+	}
+	
+	@Override
+	public void await(MpscRingBuffer<?> buffer, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		long park = MIN_PARK_NANOS;
+		while (buffer.isEmpty()) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return;
+			}
+			
+			LockSupport.parkNanos(this, Math.min(park, remaining));
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			park = Math.min(park * 2, maxParkNanos);
+		}
+	}
+	
+	@Override
+	public void signal() {
+		// Consumers poll; nothing to wake.
+	}
+}
@@ -0,0 +1,56 @@
+package com.coalmine.connector.queue;
+
+/**
+ * Busy-spins, then yields, then falls back to parking. Gives the lowest
+ * latency when notifications arrive in bursts, at the cost of burning CPU for
+ * a short while each time the buffer runs empty.
+ */
+public class SpinThenParkWaitStrategy implements WaitStrategy {
+	
+	public static final int DEFAULT_SPINS = 1000;
+	
+	public static final int DEFAULT_YIELDS = 100;
+	
+	private final int spins;
+	
+	private final int yields;
+	
+	private final ParkWaitStrategy park;
+	
+	public SpinThenParkWaitStrategy() {
+		this(DEFAULT_SPINS, DEFAULT_YIELDS, new ParkWaitStrategy());
+	}
+	
+	public SpinThenParkWaitStrategy(int spins, int yields, ParkWaitStrategy park) {
+		this.spins = spins;
+		this.yields = yields;
+		this.park = park;
+	}
+	
+	@Override
+	public void await(MpscRingBuffer<?> buffer, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (int i = 0; i < spins; i++) {
+			if (!buffer.isEmpty()) {
+				return;
+			}
+		}
+		
+		for (int i = 0; i < yields; i++) {
+			if (!buffer.isEmpty() || System.nanoTime() >= deadline) {
+				return;
+			}
+			Thread.yield();
+		}
+		
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+		park.await(buffer, deadline - System.nanoTime());
+	}
+	
+	@Override
+	public void signal() {
+		park.signal();
+	}
+}
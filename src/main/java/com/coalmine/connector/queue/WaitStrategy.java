@@ -0,0 +1,24 @@
+package com.coalmine.connector.queue;
+
+/**
+ * Decides how the consumer of an MpscRingBuffer waits for elements, trading
+ * wake-up latency against CPU use and producer overhead.
+ */
+public interface WaitStrategy {
+	
+	/**
+	 * Wait until the buffer may no longer be empty, or the timeout expires.
+	 * Implementations may return early.
+	 * 
+	 * @param buffer The buffer being waited on
+	 * @param timeoutNanos Maximum time to wait
+	 * @throws InterruptedException If the waiting thread is interrupted
+	 */
+	void await(MpscRingBuffer<?> buffer, long timeoutNanos) throws InterruptedException;
+	
+	/**
+	 * Called by producers after adding an element. Must be cheap when no
+	 * consumer is waiting.
+	 */
+	void signal();
+}
@@ -1,5 +1,6 @@
 package com.coalmine.connector.servlet.filter;
 
+import java.io.File;
 import java.io.IOException;
 
 import javax.servlet.Filter;
@@ -11,7 +12,9 @@ import javax.servlet.ServletResponse;
 
 import com.coalmine.Coalmine;
 import com.coalmine.connector.Connector;
+import com.coalmine.connector.NoneBlockingConnector;
 import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.journal.Journal;
 import com.coalmine.connector.notification.LoggedNotification;
 
 /**
@@ -36,23 +39,63 @@ import com.coalmine.connector.notification.LoggedNotification;
  *       		<param-name>version</param-name>
  *       		<param-value>1.0.0</param-value>
  *   		</init-param>
+ *   		<!-- Optional: Milliseconds to wait for pending notifications when the application is undeployed. Defaults to 5000 -->
+ *   		<init-param>
+ *       		<param-name>shutdown-timeout</param-name>
+ *       		<param-value>5000</param-value>
+ *   		</init-param>
+ *   		<!-- Optional: Send from a background thread. Set to false to send on the request thread. Defaults to true -->
+ *   		<init-param>
+ *       		<param-name>async</param-name>
+ *       		<param-value>true</param-value>
+ *   		</init-param>
+ *   		<!-- Optional: Number of notifications queued for the background thread. Defaults to 128 -->
+ *   		<init-param>
+ *       		<param-name>queue-size</param-name>
+ *       		<param-value>128</param-value>
+ *   		</init-param>
+ *   		<!-- Optional: Number of background threads. Defaults to 1 -->
+ *   		<init-param>
+ *       		<param-name>workers</param-name>
+ *       		<param-value>1</param-value>
+ *   		</init-param>
+ *   		<!-- Optional: What to do when the queue is full, "drop" or "journal". Defaults to "drop" -->
+ *   		<init-param>
+ *       		<param-name>overflow</param-name>
+ *       		<param-value>journal</param-value>
+ *   		</init-param>
+ *   		<!-- Required with overflow "journal": Directory the journal is written to -->
+ *   		<init-param>
+ *       		<param-name>journal-directory</param-name>
+ *       		<param-value>/var/lib/myapp/coalmine</param-value>
+ *   		</init-param>
  *		</filter>
  *		<filter-mapping>
  *			<filter-name>coalmine</filter-name>
  *			<url-pattern>/*</url-pattern>
  *		</filter-mapping>
+ * 
+ * When a request fails, the filter copies what it needs from the request and
+ * queues the notification; it is serialized and sent by a background thread,
+ * so the request thread is not held up while Coalmine is contacted.
  */
 public class CoalmineFilter implements Filter {
 	
+	/** Default number of notifications queued for delivery. */
+	public static final int DEFAULT_QUEUE_SIZE = 128;
+	
 	/** The Coalmine connector responsible for communicating with the Coalmine service. */
 	protected Connector connector;
 	
+	/** Maximum milliseconds destroy() waits for pending notifications. */
+	protected long shutdownTimeout = Connector.DEFAULT_SHUTDOWN_TIMEOUT;
+	
 	/**
 	 * Init the Filter. Read configuration from web.xml
 	 */
 	@Override
 	public void init(FilterConfig config) throws ServletException {
-		connector = new SimpleConnector(config.getInitParameter("signature"));
+		connector = createConnector(config);
 		Coalmine.setSignature(config.getInitParameter("signature"));
 		
 		String environment = config.getInitParameter("environment");
@@ -64,6 +107,37 @@ public class CoalmineFilter implements Filter {
 		if (version != null && !version.isEmpty()) {
 			setVersion(version);
 		}
+		
+		shutdownTimeout = getLong(config, "shutdown-timeout", Connector.DEFAULT_SHUTDOWN_TIMEOUT);
+		
+		connector.start();
+	}
+	
+	/**
+	 * Create the connector described by the init-params.
+	 */
+	protected Connector createConnector(FilterConfig config) throws ServletException {
+		String signature = config.getInitParameter("signature");
+		if ("false".equalsIgnoreCase(config.getInitParameter("async"))) {
+			return new SimpleConnector(signature);
+		}
+		
+		NoneBlockingConnector nonBlocking = new NoneBlockingConnector(signature,
+				(int) getLong(config, "queue-size", DEFAULT_QUEUE_SIZE));
+		nonBlocking.setWorkers((int) getLong(config, "workers", 1));
+		
+		String overflow = config.getInitParameter("overflow");
+		if ("journal".equalsIgnoreCase(overflow)) {
+			String directory = config.getInitParameter("journal-directory");
+			if (directory == null || directory.isEmpty()) {
+				throw new ServletException("overflow journal requires a journal-directory");
+			}
+			nonBlocking.setJournal(new Journal(new File(directory)));
+		} else if (overflow != null && !overflow.isEmpty() && !"drop".equalsIgnoreCase(overflow)) {
+			throw new ServletException("Invalid overflow: " + overflow);
+		}
+		
+		return nonBlocking;
 	}
 
 	@Override
@@ -82,7 +156,20 @@ public class CoalmineFilter implements Filter {
 
 	@Override
 	public void destroy() {
-		// Do nothing
+		connector.stop(shutdownTimeout);
+	}
+	
+	private static long getLong(FilterConfig config, String name, long defaultValue) throws ServletException {
+		String value = config.getInitParameter(name);
+		if (value == null || value.isEmpty()) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new ServletException("Invalid " + name + ": " + value, e);
+		}
 	}
 	
 	/**
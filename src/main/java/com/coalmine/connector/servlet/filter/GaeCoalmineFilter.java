@@ -1,17 +1,25 @@
 package com.coalmine.connector.servlet.filter;
 
+import java.util.logging.Handler;
 import java.util.logging.Logger;
 
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 
+import com.coalmine.connector.Connector;
+import com.coalmine.connector.SimpleConnector;
 import com.coalmine.connector.logging.GaeCoalmineHandler;
 import com.coalmine.connector.logging.GwtGaeCoalmineHandler;
+import com.coalmine.connector.transport.UrlConnectionTransport;
 
 /**
  * A CoalmineFilter which automatically collects the environment and version from
  * the GAE environment variables.
  * 
+ * App Engine restricts threads, sockets and the file system, so notifications
+ * are sent synchronously over URLFetch (HttpURLConnection), and the async,
+ * queue and journal init-params of CoalmineFilter do not apply.
+ * 
  * This filter also adds a JUL Handler since GAE uses JUL. Any messages logged as
  * WARNING or SEVERE are automatically sent to Coalmine. You can disable this behavior by
  * adding the below to your web.xml filter.
@@ -26,6 +34,9 @@ public class GaeCoalmineFilter extends CoalmineFilter {
 	/** Class member just so that the log does not get garbage collected. */
 	protected Logger _log;
 	
+	/** The JUL Handler added to the root logger, if any. */
+	protected Handler _handler;
+	
 	@Override
 	public void init(FilterConfig config) throws ServletException {
 		super.init(config);
@@ -49,10 +60,29 @@ public class GaeCoalmineFilter extends CoalmineFilter {
 		
 		if ("gwt".equals(julHandler)) {
 			_log = Logger.getLogger("");
-			_log.addHandler(new GwtGaeCoalmineHandler(connector));
+			_handler = new GwtGaeCoalmineHandler(connector);
+			_log.addHandler(_handler);
 		} else if (!"false".equals(julHandler)) {
 			_log = Logger.getLogger("");
-			_log.addHandler(new GaeCoalmineHandler(connector));
+			_handler = new GaeCoalmineHandler(connector);
+			_log.addHandler(_handler);
+		}
+	}
+	
+	@Override
+	protected Connector createConnector(FilterConfig config) {
+		SimpleConnector simple = new SimpleConnector(config.getInitParameter("signature"));
+		simple.setTransport(new UrlConnectionTransport());
+		return simple;
+	}
+	
+	@Override
+	public void destroy() {
+		// Detach first so nothing is logged to a stopped connector.
+		if (_handler != null) {
+			_log.removeHandler(_handler);
+			_handler = null;
 		}
+		super.destroy();
 	}
 }
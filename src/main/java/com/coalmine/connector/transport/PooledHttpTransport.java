@@ -0,0 +1,627 @@
+package com.coalmine.connector.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * HTTP/1.1 transport that keeps a small pool of persistent connections to the
+ * Coalmine endpoint, so that consecutive notifications do not each pay for a
+ * TCP and TLS handshake.
+ *
+ * Idle connections are not watched by a thread. Those idle longer than the
+ * idle timeout are closed the next time a connection is taken from or
+ * returned to the pool, or when evictIdleConnections() is called, so on a
+ * quiet connector up to maxIdleConnections sockets stay open until then
+ * (or until the server closes them).
+ *
+ * Servers close keep-alive connections that sit idle, often after about five
+ * seconds. A connection that has been idle a while is checked for end of
+ * stream before it is reused, and a request on a reused connection that
+ * fails before any of the response arrives (the server closed it while it sat
+ * in the pool) is retried once on a fresh connection. Once response bytes
+ * have arrived the request is never retried, since the server has evidently
+ * processed it; a truncated response is an ordinary failure.
+ *
+ * Routes that need a proxy, or HTTPS on a JVM that cannot verify host names
+ * on raw sockets, are handed to a UrlConnectionTransport instead.
+ */
+public class PooledHttpTransport implements Transport {
+	
+	/** Default number of idle connections kept open. */
+	public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 4;
+	
+	/**
+	 * Default number of milliseconds an idle connection is kept open. Shorter
+	 * than the keep-alive timeout of common servers.
+	 */
+	public static final long DEFAULT_IDLE_TIMEOUT = 4000;
+	
+	/** Connections idle for longer than this are checked before reuse. */
+	private static final long STALE_CHECK_INTERVAL = 1000;
+	
+	/** Response bodies are only informational; anything past this is discarded. */
+	private static final int MAX_RESPONSE_BODY = 64 * 1024;
+	
+	/** SSLParameters.setEndpointIdentificationAlgorithm, only available on Java 7+. */
+	private static final Method SET_ENDPOINT_IDENTIFICATION = findEndpointIdentificationMethod();
+	
+	/** Class level logger. */
+	private static final Logger LOG = LoggerFactory.getLogger(PooledHttpTransport.class);
+	
+	private final int maxIdleConnections;
+	
+	private final long idleTimeout;
+	
+	/** Idle connections, most recently used first. Guarded by itself. */
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	
+	/** Parsed routes by URL. In practice this holds a single entry. */
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+	
+	/** Used for routes this transport cannot handle itself. */
+	private final Transport fallback = new UrlConnectionTransport();
+	
+	private volatile boolean closed;
+	
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong connectionsOpened = new AtomicLong();
+	private final AtomicLong connectionsReused = new AtomicLong();
+	private final AtomicLong connectionsEvicted = new AtomicLong();
+	
+	public PooledHttpTransport() {
+		this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_IDLE_TIMEOUT);
+	}
+	
+	/**
+	 * @param maxIdleConnections Maximum number of idle connections kept open
+	 * @param idleTimeout Milliseconds after which an idle connection is closed
+	 */
+	public PooledHttpTransport(int maxIdleConnections, long idleTimeout) {
+		if (maxIdleConnections < 0) {
+			throw new IllegalArgumentException("Max idle connections must not be negative");
+		}
+		
+		this.maxIdleConnections = maxIdleConnections;
+		this.idleTimeout = idleTimeout;
+	}
+	
+	@Override
+	public TransportResponse post(TransportRequest request) throws IOException {
+		Route route = getRoute(request.getUrl());
+		if (!route.pooled) {
+			return fallback.post(request);
+		}
+		
+		requests.incrementAndGet();
+		
+		PooledConnection conn = acquire(route);
+		if (conn != null) {
+			try {
+				TransportResponse response = exchange(conn, request, true);
+				connectionsReused.incrementAndGet();
+				return response;
+			} catch (StaleConnectionException e) {
+				LOG.debug("Pooled connection to {} was closed by the server, reconnecting", route.host);
+			}
+		}
+		
+		conn = open(route, request.getConnectTimeout());
+		connectionsOpened.incrementAndGet();
+		return exchange(conn, request, false);
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		synchronized (idle) {
+			for (PooledConnection conn : idle) {
+				conn.close();
+			}
+			idle.clear();
+		}
+		fallback.close();
+	}
+	
+	/**
+	 * Close connections that have been idle longer than the idle timeout. This
+	 * also happens whenever a connection is taken from or returned to the pool;
+	 * call it from a scheduler of your own to release sockets on a quiet
+	 * connector.
+	 */
+	public void evictIdleConnections() {
+		long now = System.currentTimeMillis();
+		synchronized (idle) {
+			evictExpired(now);
+		}
+	}
+	
+	/** @return Number of requests sent over pooled connections */
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	/** @return Number of connections opened */
+	public long getConnectionsOpened() {
+		return connectionsOpened.get();
+	}
+	
+	/** @return Number of requests that reused an open connection */
+	public long getConnectionsReused() {
+		return connectionsReused.get();
+	}
+	
+	/** @return Number of idle connections closed by eviction */
+	public long getConnectionsEvicted() {
+		return connectionsEvicted.get();
+	}
+	
+	/** @return Number of connections currently idle in the pool */
+	public int getIdleConnections() {
+		synchronized (idle) {
+			return idle.size();
+		}
+	}
+	
+	private PooledConnection acquire(Route route) {
+		while (true) {
+			PooledConnection conn = null;
+			long now = System.currentTimeMillis();
+			synchronized (idle) {
+				evictExpired(now);
+				for (Iterator<PooledConnection> it = idle.iterator(); it.hasNext();) {
+					PooledConnection candidate = it.next();
+					if (candidate.route.equals(route)) {
+						it.remove();
+						conn = candidate;
+						break;
+					}
+				}
+			}
+			
+			if (conn == null || now - conn.lastUsed < STALE_CHECK_INTERVAL || isOpen(conn)) {
+				return conn;
+			}
+			
+			LOG.debug("Pooled connection to {} was closed by the server while idle", route.host);
+			conn.close();
+			connectionsEvicted.incrementAndGet();
+		}
+	}
+		
+	/**
+	 * Peek at an idle connection. The server sends nothing on an idle
+	 * connection, so anything other than a read timeout means it is unusable.
+	 */
+	private boolean isOpen(PooledConnection conn) {
+		try {
+			conn.socket.setSoTimeout(1);
+			conn.in.read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+	
+	private void release(PooledConnection conn) {
+		long now = System.currentTimeMillis();
+		conn.lastUsed = now;
+		synchronized (idle) {
+			evictExpired(now);
+			if (!closed && idle.size() < maxIdleConnections) {
+				idle.addFirst(conn);
+				return;
+			}
+		}
+		
+		conn.close();
+	}
+	
+	/** Must be called while holding the idle lock. */
+	private void evictExpired(long now) {
+		for (Iterator<PooledConnection> it = idle.descendingIterator(); it.hasNext();) {
+			PooledConnection conn = it.next();
+			if (now - conn.lastUsed < idleTimeout) {
+				// Connections are ordered by last use, so the rest are fresher.
+				return;
+			}
+			
+			it.remove();
+			conn.close();
+			connectionsEvicted.incrementAndGet();
+		}
+	}
+	
+	private PooledConnection open(Route route, int connectTimeout) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(route.host, route.port), connectTimeout);
+			
+			if (route.secure) {
+				SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+						.createSocket(socket, route.host, route.port, true);
+				enableHostnameVerification(ssl);
+				ssl.startHandshake();
+				socket = ssl;
+			}
+			
+			return new PooledConnection(route, socket);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+	
+	private TransportResponse exchange(PooledConnection conn, TransportRequest request, boolean reused) throws IOException {
+		boolean keepAlive = false;
+		try {
+			try {
+				conn.socket.setSoTimeout(request.getReadTimeout());
+				writeRequest(conn, request);
+			} catch (SocketTimeoutException e) {
+				throw e;
+			} catch (IOException e) {
+				if (reused) {
+					throw new StaleConnectionException(e);
+				}
+				throw e;
+			}
+			
+			if (!awaitResponse(conn) && reused) {
+				throw new StaleConnectionException(new IOException("Connection closed before a response was received"));
+			}
+			
+			String statusLine = readLine(conn.in);
+			if (statusLine == null) {
+				throw new IOException("Connection closed before a response was received");
+			}
+			
+			int statusCode = parseStatusCode(statusLine);
+			Map<String, String> headers = readHeaders(conn.in);
+			while (statusCode == 100) {
+				statusLine = readLine(conn.in);
+				if (statusLine == null) {
+					throw new IOException("Connection closed before a response was received");
+				}
+				statusCode = parseStatusCode(statusLine);
+				headers = readHeaders(conn.in);
+			}
+			
+			keepAlive = isKeepAlive(statusLine, headers);
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			if (statusCode == 204 || statusCode == 304) {
+				// No body
+			} else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+				readChunkedBody(conn.in, body);
+			} else if (headers.containsKey("content-length")) {
+				readFixedBody(conn.in, body, parseContentLength(headers.get("content-length")));
+			} else {
+				readFixedBody(conn.in, body, -1);
+				keepAlive = false;
+			}
+			
+			return new TransportResponse(statusCode, headers, body.toString("UTF-8"), reused);
+		} finally {
+			if (keepAlive) {
+				release(conn);
+			} else {
+				conn.close();
+			}
+		}
+	}
+	
+	/**
+	 * Wait for the first byte of the response without consuming it.
+	 *
+	 * @return False if the connection was closed or reset before any of the
+	 *         response arrived
+	 */
+	private boolean awaitResponse(PooledConnection conn) throws IOException {
+		conn.in.mark(1);
+		try {
+			if (conn.in.read() == -1) {
+				return false;
+			}
+		} catch (SocketTimeoutException e) {
+			throw e;
+		} catch (IOException e) {
+			return false;
+		}
+		conn.in.reset();
+		return true;
+	}
+	
+	private void writeRequest(PooledConnection conn, TransportRequest request) throws IOException {
+		StringBuilder head = new StringBuilder(256);
+		head.append("POST ").append(conn.route.target).append(" HTTP/1.1\r\n");
+		head.append("Host: ").append(conn.route.hostHeader).append("\r\n");
+		head.append("Connection: keep-alive\r\n");
+		head.append("Content-Type: ").append(request.getContentType()).append("\r\n");
+		head.append("Content-Length: ").append(request.getBodyLength()).append("\r\n");
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		head.append("\r\n");
+		
+		conn.out.write(head.toString().getBytes("ISO-8859-1"));
+		conn.out.write(request.getBody(), 0, request.getBodyLength());
+		conn.out.flush();
+	}
+	
+	private Map<String, String> readHeaders(InputStream in) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		
+		if (line == null) {
+			throw new IOException("Connection closed while reading response headers");
+		}
+		
+		return headers;
+	}
+	
+	private void readChunkedBody(InputStream in, ByteArrayOutputStream body) throws IOException {
+		while (true) {
+			String sizeLine = readLine(in);
+			if (sizeLine == null) {
+				throw new IOException("Connection closed while reading chunked response");
+			}
+			
+			int semicolon = sizeLine.indexOf(';');
+			String size = semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine;
+			long chunkSize;
+			try {
+				chunkSize = Long.parseLong(size.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid chunk size: " + sizeLine);
+			}
+			
+			if (chunkSize == 0) {
+				// Skip any trailers
+				readHeaders(in);
+				return;
+			}
+			
+			readFixedBody(in, body, chunkSize);
+			readLine(in);
+		}
+	}
+	
+	/**
+	 * Read length bytes of body, or until end of stream when length is -1. Only
+	 * the first MAX_RESPONSE_BODY bytes are kept.
+	 */
+	private void readFixedBody(InputStream in, ByteArrayOutputStream body, long length) throws IOException {
+		byte[] buffer = new byte[1024];
+		long remaining = length;
+		while (length < 0 || remaining > 0) {
+			int read = in.read(buffer, 0, length < 0 ? buffer.length : (int) Math.min(buffer.length, remaining));
+			if (read == -1) {
+				if (length < 0) {
+					return;
+				}
+				throw new IOException("Connection closed while reading response body");
+			}
+			
+			if (body.size() < MAX_RESPONSE_BODY) {
+				body.write(buffer, 0, Math.min(read, MAX_RESPONSE_BODY - body.size()));
+			}
+			remaining -= read;
+		}
+	}
+	
+	/**
+	 * Read a CRLF terminated line as ISO-8859-1.
+	 *
+	 * @return The line without its terminator, or null at end of stream
+	 */
+	private String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		
+		return line.length() == 0 ? null : line.toString();
+	}
+	
+	private int parseStatusCode(String statusLine) throws IOException {
+		// e.g. HTTP/1.1 200 OK
+		String[] parts = statusLine.split(" ", 3);
+		if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+		
+		try {
+			return Integer.parseInt(parts[1]);
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid HTTP status line: " + statusLine);
+		}
+	}
+	
+	private long parseContentLength(String value) throws IOException {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid Content-Length: " + value);
+		}
+	}
+	
+	private boolean isKeepAlive(String statusLine, Map<String, String> headers) {
+		String connection = headers.get("connection");
+		if (statusLine.startsWith("HTTP/1.0")) {
+			return "keep-alive".equalsIgnoreCase(connection);
+		}
+		
+		return !"close".equalsIgnoreCase(connection);
+	}
+	
+	private Route getRoute(String url) throws IOException {
+		Route route = routes.get(url);
+		if (route == null) {
+			route = new Route(url);
+			routes.putIfAbsent(url, route);
+		}
+		
+		return route;
+	}
+	
+	private static void enableHostnameVerification(SSLSocket ssl) throws IOException {
+		SSLParameters params = ssl.getSSLParameters();
+		try {
+			SET_ENDPOINT_IDENTIFICATION.invoke(params, "HTTPS");
+		} catch (Exception e) {
+			throw new IOException("Unable to enable host name verification", e);
+		}
+		ssl.setSSLParameters(params);
+	}
+	
+	private static Method findEndpointIdentificationMethod() {
+		try {
+			return SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+	
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+	
+	/**
+	 * Where requests for a URL go, and whether this transport can handle them.
+	 */
+	private static class Route {
+		
+		final boolean secure;
+		final String host;
+		final int port;
+		final String hostHeader;
+		final String target;
+		final boolean pooled;
+		
+		Route(String url) throws MalformedURLException {
+			URL parsed = new URL(url);
+			secure = "https".equalsIgnoreCase(parsed.getProtocol());
+			host = parsed.getHost();
+			port = parsed.getPort() == -1 ? parsed.getDefaultPort() : parsed.getPort();
+			hostHeader = parsed.getPort() == -1 ? host : host + ":" + port;
+			target = parsed.getFile().isEmpty() ? "/" : parsed.getFile();
+			
+			boolean supportedScheme = secure ? SET_ENDPOINT_IDENTIFICATION != null : "http".equalsIgnoreCase(parsed.getProtocol());
+			pooled = supportedScheme && isDirect(parsed);
+		}
+		
+		private static boolean isDirect(URL url) {
+			ProxySelector selector = ProxySelector.getDefault();
+			if (selector == null) {
+				return true;
+			}
+			
+			try {
+				List<Proxy> proxies = selector.select(url.toURI());
+				return proxies.isEmpty() || (proxies.size() == 1 && proxies.get(0).type() == Proxy.Type.DIRECT);
+			} catch (URISyntaxException e) {
+				return false;
+			}
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Route)) {
+				return false;
+			}
+			
+			Route other = (Route) obj;
+			return secure == other.secure && port == other.port && host.equalsIgnoreCase(other.host);
+		}
+		
+		@Override
+		public int hashCode() {
+			return host.toLowerCase().hashCode() * 31 + port;
+		}
+	}
+	
+	/**
+	 * An open socket along with its buffered streams.
+	 */
+	private static class PooledConnection {
+		
+		final Route route;
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		long lastUsed;
+		
+		PooledConnection(Route route, Socket socket) throws IOException {
+			this.route = route;
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream());
+			this.out = new BufferedOutputStream(socket.getOutputStream());
+			this.lastUsed = System.currentTimeMillis();
+		}
+		
+		void close() {
+			closeQuietly(socket);
+		}
+	}
+	
+	/**
+	 * Thrown when a request on a pooled connection fails before any of the
+	 * response arrived, because the server had closed the connection.
+	 */
+	@SuppressWarnings("serial")
+	private static class StaleConnectionException extends IOException {
+		
+		StaleConnectionException(IOException cause) {
+			super("Stale pooled connection", cause);
+		}
+	}
+}
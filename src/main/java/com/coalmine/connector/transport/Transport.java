@@ -0,0 +1,29 @@
+package com.coalmine.connector.transport;
+
+import java.io.IOException;
+
+/**
+ * Responsible for moving a request body to the Coalmine service over HTTP.
+ * Connectors delegate the network exchange to a Transport so that the way
+ * connections are opened and reused can be swapped out independently of the
+ * notification logic.
+ * 
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface Transport {
+	
+	/**
+	 * POST a request and read the complete response.
+	 * 
+	 * @param request The request to send
+	 * @return The response from the server
+	 * @throws IOException If the request could not be sent or the response
+	 *             could not be read
+	 */
+	TransportResponse post(TransportRequest request) throws IOException;
+	
+	/**
+	 * Release any connections held by this transport.
+	 */
+	void close();
+}
@@ -0,0 +1,92 @@
+package com.coalmine.connector.transport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A single POST to the Coalmine service.
+ */
+public class TransportRequest {
+	
+	/** The URL to POST to. */
+	protected final String url;
+	
+	/** Content type of the request body. */
+	protected final String contentType;
+	
+	/** Additional request headers, in the order they were added. */
+	protected final Map<String, String> headers = new LinkedHashMap<String, String>();
+	
+	/** Buffer holding the request body. Only the first bodyLength bytes are sent. */
+	protected byte[] body = new byte[0];
+	
+	/** Number of bytes of the body buffer to send. */
+	protected int bodyLength;
+	
+	/** Milliseconds to wait for a connection to be established. */
+	protected int connectTimeout;
+	
+	/** Milliseconds to wait for data once connected. */
+	protected int readTimeout;
+	
+	public TransportRequest(String url, String contentType) {
+		this.url = url;
+		this.contentType = contentType;
+	}
+	
+	public String getUrl() {
+		return url;
+	}
+	
+	public String getContentType() {
+		return contentType;
+	}
+	
+	public void setHeader(String name, String value) {
+		headers.put(name, value);
+	}
+	
+	public Map<String, String> getHeaders() {
+		return headers;
+	}
+	
+	/**
+	 * Set the request body. The buffer is not copied; it must not be modified
+	 * until the request has been sent.
+	 * 
+	 * @param body Buffer holding the body
+	 * @param length Number of bytes of the buffer to send
+	 */
+	public void setBody(byte[] body, int length) {
+		if (length < 0 || length > body.length) {
+			throw new IllegalArgumentException("Invalid body length");
+		}
+		
+		this.body = body;
+		this.bodyLength = length;
+	}
+	
+	public byte[] getBody() {
+		return body;
+	}
+	
+	public int getBodyLength() {
+		return bodyLength;
+	}
+	
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+	
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+	
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+	
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+}
@@ -0,0 +1,52 @@
+package com.coalmine.connector.transport;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The response to a TransportRequest. The body has already been read in full
+ * so the underlying connection can be released or reused.
+ */
+public class TransportResponse {
+	
+	/** HTTP status code. */
+	protected final int statusCode;
+	
+	/** Response headers, keyed case-insensitively. */
+	protected final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+	
+	/** The response body. */
+	protected final String body;
+	
+	/** Whether the request went over a connection that was already open. */
+	protected final boolean connectionReused;
+	
+	public TransportResponse(int statusCode, Map<String, String> headers, String body, boolean connectionReused) {
+		this.statusCode = statusCode;
+		if (headers != null) {
+			this.headers.putAll(headers);
+		}
+		this.body = body == null ? "" : body;
+		this.connectionReused = connectionReused;
+	}
+	
+	public int getStatusCode() {
+		return statusCode;
+	}
+	
+	/**
+	 * @param name Header name, case-insensitive
+	 * @return The header value, or null if the header was not sent
+	 */
+	public String getHeader(String name) {
+		return headers.get(name);
+	}
+	
+	public String getBody() {
+		return body;
+	}
+	
+	public boolean isConnectionReused() {
+		return connectionReused;
+	}
+}
@@ -0,0 +1,79 @@
+package com.coalmine.connector.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Transport built on HttpURLConnection. Connection reuse is left to the JDK's
+ * own keep-alive cache, which is why the response is always read to the end
+ * and the connection is never explicitly disconnected.
+ * 
+ * This transport honors the JVM's proxy settings and is used as the fallback
+ * for routes the PooledHttpTransport cannot handle.
+ */
+public class UrlConnectionTransport implements Transport {
+	
+	@Override
+	public TransportResponse post(TransportRequest request) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+		conn.setRequestProperty("Content-Type", request.getContentType());
+		for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+			conn.setRequestProperty(header.getKey(), header.getValue());
+		}
+		conn.setUseCaches(false);
+		conn.setDoOutput(true); // Implicitly sets conn to POST
+		conn.setConnectTimeout(request.getConnectTimeout());
+		conn.setReadTimeout(request.getReadTimeout());
+		conn.setFixedLengthStreamingMode(request.getBodyLength());
+		
+		OutputStream out = conn.getOutputStream();
+		try {
+			out.write(request.getBody(), 0, request.getBodyLength());
+			out.flush();
+		} finally {
+			out.close();
+		}
+		
+		int statusCode = conn.getResponseCode();
+		InputStream in = statusCode >= 400 ? conn.getErrorStream() : conn.getInputStream();
+		
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+			if (header.getKey() != null && !header.getValue().isEmpty()) {
+				headers.put(header.getKey(), header.getValue().get(0));
+			}
+		}
+		
+		return new TransportResponse(statusCode, headers, readBody(in), false);
+	}
+	
+	@Override
+	public void close() {
+		// Nothing to release; the JDK owns the connection cache.
+	}
+	
+	private String readBody(InputStream in) throws IOException {
+		if (in == null) {
+			return "";
+		}
+		
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+			}
+			return body.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
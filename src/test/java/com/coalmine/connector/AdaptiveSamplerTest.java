@@ -0,0 +1,52 @@
+package com.coalmine.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.notification.Severity;
+
+public class AdaptiveSamplerTest {
+	
+	@Test
+	public void testErrorsAreAlwaysKept() {
+		AdaptiveSampler sampler = new AdaptiveSampler();
+		sampler.setRates("ERROR=0,WARN=0");
+		
+		for (int i = 0; i < 100; i++) {
+			assertEquals(1.0, sampler.sample(Severity.ERROR, 1.0), 0);
+			assertEquals(0, sampler.sample(Severity.WARN, 0), 0);
+		}
+	}
+	
+	@Test
+	public void testRatesTightenWithLoad() {
+		AdaptiveSampler sampler = new AdaptiveSampler();
+		sampler.setRate(Severity.INFO, 0.5);
+		
+		assertEquals(0.5, sampler.getRate(Severity.INFO, 0.2), 0);
+		assertEquals(1.0, sampler.getRate(Severity.WARN, 0.5), 0);
+		assertTrue(sampler.getRate(Severity.WARN, 0.75) < 1.0);
+		assertTrue(sampler.getRate(Severity.INFO, 0.75) < sampler.getRate(Severity.WARN, 0.75) / 2);
+		assertEquals(0.01, sampler.getRate(Severity.WARN, 1.0), 1e-9);
+	}
+	
+	@Test
+	public void testSampleRateIsSentWithTheNotification() throws IOException {
+		LoggedNotification notification = new LoggedNotification();
+		notification.setSampleRate(0.25);
+		StringBuilder json = new StringBuilder();
+		notification.writeJson(json);
+		assertTrue(json.toString().contains("\"sample_rate\":0.25"));
+		
+		notification.setSampleRate(1.0);
+		json.setLength(0);
+		notification.writeJson(json);
+		assertFalse(json.toString().contains("sample_rate"));
+	}
+}
@@ -0,0 +1,238 @@
+package com.coalmine.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.coalmine.connector.journal.Journal;
+import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+public class NoneBlockingConnectorTest {
+	
+	protected NoneBlockingConnector connector;
+	
+	@After
+	public void tearDown() {
+		if (connector != null) {
+			connector.stop();
+		}
+	}
+	
+	@Test
+	public void testWorkersDeliverEveryNotificationInBatches() throws InterruptedException {
+		CountingTransport transport = new CountingTransport();
+		connector = new NoneBlockingConnector("AtestSignature", 256);
+		connector.setTransport(transport);
+		connector.setWorkers(3);
+		connector.setBatchSize(8);
+		connector.setBatchLinger(20);
+		connector.start();
+		
+		for (int i = 0; i < 100; i++) {
+			assertTrue(connector.send(new LoggedNotification()));
+		}
+		
+		long deadline = System.currentTimeMillis() + 10000;
+		while (transport.notifications.get() < 100 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		
+		assertEquals(100, transport.notifications.get());
+		assertTrue(transport.requests.get() < 100);
+		assertEquals(0, connector.getDroppedCount());
+	}
+	
+	@Test
+	public void testQueuedNotificationsArriveInOnePost() {
+		CountingTransport transport = new CountingTransport();
+		connector = new NoneBlockingConnector("AtestSignature", 16);
+		connector.setTransport(transport);
+		connector.setBatchSize(5);
+		
+		for (int i = 0; i < 5; i++) {
+			assertTrue(connector.send(new LoggedNotification()));
+		}
+		connector.start();
+		assertTrue(connector.flush(10000));
+		
+		assertEquals(1, transport.requests.get());
+		assertEquals(5, transport.notifications.get());
+	}
+	
+	@Test
+	public void testOverflowIsCounted() {
+		connector = new NoneBlockingConnector("AtestSignature", 2);
+		
+		assertTrue(connector.send(new LoggedNotification()));
+		assertTrue(connector.send(new LoggedNotification()));
+		assertFalse(connector.send(new LoggedNotification()));
+		assertEquals(1, connector.getDroppedCount());
+		assertEquals(2, connector.getQueueSize());
+	}
+	
+	@Test
+	public void testSpillsAreJournaledByTheWorkers() throws IOException, InterruptedException {
+		File directory = File.createTempFile("coalmine", "journal");
+		directory.delete();
+		try {
+			Journal journal = new Journal(directory);
+			connector = new NoneBlockingConnector("AtestSignature", 2);
+			connector.setJournal(journal);
+			connector.setCircuitBreaker(new CircuitBreaker(1, 60000));
+			connector.getCircuitBreaker().recordFailure();
+			
+			assertFalse(connector.send(new LoggedNotification()));
+			assertEquals(0, journal.getSize());
+			
+			connector.start();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (journal.getSize() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			
+			assertTrue(journal.getSize() > 0);
+			assertEquals(0, connector.getDroppedCount());
+		} finally {
+			connector.stop();
+			connector = null;
+			File[] files = directory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			directory.delete();
+		}
+	}
+	
+	@Test
+	public void testStopDeliversQueuedNotifications() {
+		CountingTransport transport = new CountingTransport();
+		transport.delay = 5;
+		connector = new NoneBlockingConnector("AtestSignature", 64);
+		connector.setTransport(transport);
+		connector.start();
+		
+		for (int i = 0; i < 20; i++) {
+			assertTrue(connector.send(new LoggedNotification()));
+		}
+		connector.stop(10000);
+		
+		assertEquals(20, transport.notifications.get());
+		assertEquals(0, connector.getQueueSize());
+		assertFalse(connector.send(new LoggedNotification()));
+	}
+	
+	@Test
+	public void testStopDeadlineDropsBacklog() {
+		CountingTransport transport = new CountingTransport();
+		transport.delay = 200;
+		connector = new NoneBlockingConnector("AtestSignature", 64);
+		connector.setTransport(transport);
+		connector.start();
+		
+		for (int i = 0; i < 20; i++) {
+			connector.send(new LoggedNotification());
+		}
+		connector.stop(50);
+		
+		assertEquals(0, connector.getQueueSize());
+		assertTrue(connector.getDroppedCount() >= 18);
+	}
+	
+	@Test
+	public void testWorkerMissingTheDeadlineIsInterruptedBeforeClosing() throws InterruptedException {
+		BlockingTransport transport = new BlockingTransport();
+		connector = new NoneBlockingConnector("AtestSignature", 64);
+		connector.setTransport(transport);
+		connector.start();
+		
+		assertTrue(connector.send(new LoggedNotification()));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		connector.stop(50);
+		connector = null;
+		
+		assertTrue(transport.interrupted.await(5, TimeUnit.SECONDS));
+		assertFalse(transport.closed.await(100, TimeUnit.MILLISECONDS));
+		transport.release.countDown();
+		assertTrue(transport.closed.await(5, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Holds every request until released, and records interrupts instead of
+	 * giving up on them.
+	 */
+	protected static class BlockingTransport implements Transport {
+		
+		protected final CountDownLatch entered = new CountDownLatch(1);
+		
+		protected final CountDownLatch release = new CountDownLatch(1);
+		
+		protected final CountDownLatch closed = new CountDownLatch(1);
+		
+		protected final CountDownLatch interrupted = new CountDownLatch(1);
+		
+		@Override
+		public TransportResponse post(TransportRequest request) {
+			entered.countDown();
+			while (true) {
+				try {
+					release.await();
+					return new TransportResponse(200, null, "", false);
+				} catch (InterruptedException e) {
+					interrupted.countDown();
+				}
+			}
+		}
+		
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+	
+	protected static class CountingTransport implements Transport {
+		
+		protected final AtomicInteger requests = new AtomicInteger();
+		
+		protected final AtomicInteger notifications = new AtomicInteger();
+		
+		protected volatile long delay;
+		
+		@Override
+		public TransportResponse post(TransportRequest request) throws IOException {
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted");
+				}
+			}
+			String body = new String(request.getBody(), 0, request.getBodyLength(), "UTF-8");
+			String json = URLDecoder.decode(body.substring(body.indexOf("&json=") + 6), "UTF-8");
+			JsonElement element = new JsonParser().parse(json);
+			requests.incrementAndGet();
+			notifications.addAndGet(element.isJsonArray() ? element.getAsJsonArray().size() : 1);
+			return new TransportResponse(200, null, "", false);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.coalmine.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.notification.Notification;
+
+public class OccurrenceAggregatorTest {
+
+	@Test
+	public void testRepeatsAreSummarized() {
+		OccurrenceAggregator aggregator = new OccurrenceAggregator();
+		
+		assertTrue(aggregator.record(newNotification("User 12 not found")));
+		assertFalse(aggregator.record(newNotification("User 42 not found")));
+		assertFalse(aggregator.record(newNotification("User 7 not found")));
+		
+		List<Notification> summaries = aggregator.drain(true);
+		assertEquals(1, summaries.size());
+		assertTrue(summaries.get(0).isOccurrenceSummary());
+		assertTrue(aggregator.record(summaries.get(0)));
+	}
+	
+	@Test
+	public void testDifferentProblemsAreSentSeparately() {
+		OccurrenceAggregator aggregator = new OccurrenceAggregator();
+		
+		assertTrue(aggregator.record(newNotification("User 12 not found")));
+		assertTrue(aggregator.record(newNotification("Order 12 not found")));
+		assertTrue(aggregator.drain(true).isEmpty());
+	}
+	
+	@Test
+	public void testEvictionFlushesPendingCount() {
+		OccurrenceAggregator aggregator = new OccurrenceAggregator(60000, 1);
+		
+		aggregator.record(newNotification("User 12 not found"));
+		aggregator.record(newNotification("User 13 not found"));
+		assertTrue(aggregator.record(newNotification("Order 12 not found")));
+		
+		List<Notification> summaries = aggregator.drain(false);
+		assertEquals(1, summaries.size());
+		assertTrue(summaries.get(0).isOccurrenceSummary());
+	}
+	
+	protected Notification newNotification(String message) {
+		// Same throw site for every call; frame line numbers are part of the fingerprint.
+		Exception ex = new IllegalStateException(message);
+		ex.setStackTrace(new StackTraceElement[] {
+				new StackTraceElement("com.example.Users", "find", "Users.java", 42) });
+		return new LoggedNotification(ex);
+	}
+}
@@ -1,13 +1,27 @@
 package com.coalmine.connector;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.zip.GZIPInputStream;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import com.coalmine.connector.metrics.MetricsSnapshot;
 import com.coalmine.connector.notification.LoggedNotification;
 import com.coalmine.connector.notification.Notification;
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
 
 public class SimpleConnectorTest {
 
@@ -45,4 +59,185 @@ public class SimpleConnectorTest {
 		connector.setApplicationEnvironment("PrOductioN");
 		assertTrue(connector.isSendable(new LoggedNotification()));
 	}
+	
+	@Test
+	public void testBodyIsFormEncodedUtf8Json() throws IOException {
+		CapturingTransport transport = new CapturingTransport();
+		connector.setTransport(transport);
+		
+		LoggedNotification notification = new LoggedNotification();
+		notification.setMessage("Gr\u00fc\u00dfe \ud83d\ude00 more");
+		assertTrue(connector.send(notification));
+		
+		assertNull(transport.contentEncoding);
+		String body = new String(transport.body, "UTF-8");
+		assertTrue(body.startsWith("signature=AtestSignature&json="));
+		String json = URLDecoder.decode(body.substring(body.indexOf("&json=") + 6), "UTF-8");
+		assertTrue(json.contains("Gr\u00fc\u00dfe \ud83d\ude00 more"));
+	}
+	
+	@Test
+	public void testCompressedBodyIsGzip() throws IOException {
+		CapturingTransport transport = new CapturingTransport();
+		connector.setTransport(transport);
+		LoggedNotification notification = new LoggedNotification();
+		notification.setMessage("Compressed");
+		assertTrue(connector.send(notification));
+		byte[] plain = transport.body;
+		
+		((SimpleConnector) connector).setCompression(true);
+		((SimpleConnector) connector).setCompressionThreshold(0);
+		assertTrue(connector.send(notification));
+		
+		assertEquals("gzip", transport.contentEncoding);
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(transport.body));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int read;
+		while ((read = in.read()) != -1) {
+			body.write(read);
+		}
+		assertTrue(body.toString("UTF-8").startsWith("signature=AtestSignature&json="));
+		assertArrayEquals(plain, body.toByteArray());
+	}
+	
+	@Test
+	public void testFailuresAreRetriedUntilTheBreakerOpens() {
+		FailingTransport transport = new FailingTransport();
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTransport(transport);
+		simple.setRetryPolicy(new RetryPolicy(3, 1, 2));
+		simple.setCircuitBreaker(new CircuitBreaker(3, 60000));
+		
+		assertFalse(simple.send(new LoggedNotification()));
+		assertEquals(3, transport.attempts);
+		assertTrue(simple.getCircuitBreaker().isOpen());
+		
+		assertFalse(simple.send(new LoggedNotification()));
+		assertEquals(3, transport.attempts);
+	}
+	
+	@Test
+	public void testMetricsCountWhatHappenedToNotifications() {
+		FailingTransport transport = new FailingTransport();
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTransport(transport);
+		simple.setRetryPolicy(new RetryPolicy(3, 1, 2));
+		simple.setCircuitBreaker(new CircuitBreaker(3, 60000));
+		
+		simple.send(new LoggedNotification());
+		simple.send(new LoggedNotification());
+		
+		MetricsSnapshot metrics = simple.getMetrics().snapshot();
+		assertEquals(2, metrics.getEnqueued());
+		assertEquals(0, metrics.getDelivered());
+		assertEquals(1, metrics.getFailed());
+		assertEquals(1, metrics.getThrottled());
+		assertEquals(2, metrics.getDropped());
+		assertEquals(2, metrics.getRetries());
+		assertEquals(3, metrics.getPostCount());
+	}
+	
+	@Test
+	public void testHalfOpenProbeClosesTheBreaker() throws InterruptedException {
+		FailingTransport transport = new FailingTransport();
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTransport(transport);
+		simple.setCircuitBreaker(new CircuitBreaker(1, 20));
+		
+		assertFalse(simple.send(new LoggedNotification()));
+		assertTrue(simple.getCircuitBreaker().isOpen());
+		
+		Thread.sleep(40);
+		transport.failing = false;
+		assertTrue(simple.send(new LoggedNotification()));
+		assertFalse(simple.getCircuitBreaker().isOpen());
+		assertEquals(2, transport.attempts);
+	}
+	
+	@Test
+	public void testUnexpectedExceptionDoesNotStrandTheProbe() throws InterruptedException {
+		FailingTransport transport = new FailingTransport();
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTransport(transport);
+		simple.setCircuitBreaker(new CircuitBreaker(1, 20));
+		
+		assertFalse(simple.send(new LoggedNotification()));
+		
+		Thread.sleep(40);
+		transport.unexpected = true;
+		assertFalse(simple.send(new LoggedNotification()));
+		
+		Thread.sleep(40);
+		transport.unexpected = false;
+		transport.failing = false;
+		assertTrue(simple.send(new LoggedNotification()));
+		assertEquals(3, transport.attempts);
+	}
+	
+	@Test
+	public void testShorterRetryAfterDoesNotEndThrottle() {
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTemporaryTimeout(60);
+		simple.setTemporaryTimeout(0);
+		
+		assertTrue(simple.isThrottled());
+	}
+	
+	@Test
+	public void testRateLimiterDefersNotificationsOverTheLimit() {
+		FailingTransport transport = new FailingTransport();
+		transport.failing = false;
+		SimpleConnector simple = (SimpleConnector) connector;
+		simple.setTransport(transport);
+		simple.setRateLimiter(new TokenBucket(0.1, 2));
+		
+		assertTrue(simple.send(new LoggedNotification()));
+		assertTrue(simple.send(new LoggedNotification()));
+		assertFalse(simple.send(new LoggedNotification()));
+		assertEquals(2, transport.attempts);
+	}
+	
+	protected static class FailingTransport implements Transport {
+		
+		protected volatile boolean failing = true;
+		
+		protected volatile boolean unexpected;
+		
+		protected int attempts;
+		
+		@Override
+		public TransportResponse post(TransportRequest request) throws IOException {
+			attempts++;
+			if (unexpected) {
+				throw new IllegalStateException("Transport bug");
+			}
+			if (failing) {
+				throw new IOException("Connection refused");
+			}
+			return new TransportResponse(200, null, "", false);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+	
+	protected static class CapturingTransport implements Transport {
+		
+		protected byte[] body;
+		
+		protected String contentEncoding;
+		
+		@Override
+		public TransportResponse post(TransportRequest request) {
+			body = new byte[request.getBodyLength()];
+			System.arraycopy(request.getBody(), 0, body, 0, body.length);
+			contentEncoding = request.getHeaders().get("Content-Encoding");
+			return new TransportResponse(200, null, "", false);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
 }
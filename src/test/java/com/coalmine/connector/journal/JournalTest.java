@@ -0,0 +1,137 @@
+package com.coalmine.connector.journal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+
+public class JournalTest {
+	
+	protected File directory;
+	
+	protected Journal journal;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("coalmine", "journal");
+		directory.delete();
+		journal = new Journal(directory);
+	}
+	
+	@After
+	public void tearDown() {
+		journal.stop();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	@Test
+	public void testRecordsSurviveRestartAcrossSegments() throws IOException {
+		journal.setSegmentSize(64);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(journal.append(new JournaledNotification("{\"n\":" + i + "}")));
+		}
+		
+		List<String> first = journal.poll(3);
+		assertEquals(3, first.size());
+		journal.commit();
+		journal.stop();
+		
+		journal = new Journal(directory);
+		journal.setSegmentSize(64);
+		int next = 3;
+		while (!journal.isEmpty()) {
+			for (String record : journal.poll(2)) {
+				assertEquals("{\"n\":" + next++ + "}", record);
+			}
+			journal.commit();
+		}
+		assertEquals(10, next);
+	}
+	
+	@Test
+	public void testTornRecordIsTruncatedOnRecovery() throws IOException {
+		journal.append(new JournaledNotification("{\"n\":1}"));
+		journal.append(new JournaledNotification("{\"n\":2}"));
+		journal.stop();
+		
+		File segment = null;
+		for (File file : directory.listFiles()) {
+			if (file.getName().endsWith(".journal")) {
+				segment = file;
+			}
+		}
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+		
+		journal = new Journal(directory);
+		List<String> records = journal.poll(10);
+		assertEquals(1, records.size());
+		assertEquals("{\"n\":1}", records.get(0));
+		assertTrue(journal.append(new JournaledNotification("{\"n\":3}")));
+		journal.commit();
+		assertEquals("{\"n\":3}", journal.poll(10).get(0));
+	}
+	
+	@Test
+	public void testFullJournalRejectsRecords() {
+		journal.setMaxSize(40);
+		assertTrue(journal.append(new JournaledNotification("{\"message\":\"first\"}")));
+		assertFalse(journal.append(new JournaledNotification("{\"message\":\"second\"}")));
+		assertEquals(1, journal.getRejectedCount());
+	}
+	
+	@Test
+	public void testFailedDeliveriesAreReplayed() throws IOException {
+		SwitchableTransport transport = new SwitchableTransport();
+		SimpleConnector connector = new SimpleConnector("AtestSignature");
+		connector.setTransport(transport);
+		connector.setJournal(journal);
+		
+		transport.status = 503;
+		assertFalse(connector.send(new JournaledNotification("{\"n\":1}")));
+		assertFalse(journal.isEmpty());
+		assertEquals(0, journal.replay(connector));
+		
+		transport.status = 200;
+		assertEquals(1, journal.replay(connector));
+		assertTrue(journal.isEmpty());
+		assertEquals(3, transport.requests);
+	}
+	
+	protected static class SwitchableTransport implements Transport {
+		
+		protected volatile int status;
+		
+		protected int requests;
+		
+		@Override
+		public TransportResponse post(TransportRequest request) {
+			requests++;
+			return new TransportResponse(status, null, "", false);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
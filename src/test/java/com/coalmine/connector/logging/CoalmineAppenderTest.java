@@ -0,0 +1,260 @@
+package com.coalmine.connector.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.coalmine.connector.notification.Severity;
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+
+public class CoalmineAppenderTest {
+	
+	private LoggerContext context;
+	
+	private CoalmineAppender appender;
+	
+	private HoldingTransport transport;
+	
+	@Before
+	public void setUp() {
+		context = new LoggerContext();
+		appender = new CoalmineAppender();
+		appender.setContext(context);
+		appender.setSignature("AtestSignature");
+		appender.setEnvironment("Production");
+		transport = new HoldingTransport();
+	}
+	
+	@After
+	public void tearDown() {
+		transport.release.countDown();
+		appender.stop();
+	}
+	
+	@Test
+	public void testEventsAreReportedFromTheWorker() throws IOException {
+		transport.release.countDown();
+		start();
+		
+		MDC.put("order", "1234");
+		try {
+			appender.doAppend(event(Level.ERROR));
+		} finally {
+			MDC.remove("order");
+		}
+		appender.stop();
+		
+		assertEquals(1, transport.bodies.size());
+		assertEquals("coalmine-appender", transport.threads.get(0));
+		String json = URLDecoder.decode(transport.bodies.get(0), "UTF-8");
+		assertTrue(json.contains("\"order\":\"1234\""));
+		assertTrue(json.contains("\"thread_id\":" + Thread.currentThread().getId() + ","));
+	}
+	
+	@Test
+	public void testFramesAreRenderedAsLogbackRendersThem() throws IOException {
+		transport.release.countDown();
+		start();
+		
+		appender.doAppend(event(Level.ERROR));
+		appender.stop();
+		
+		String json = URLDecoder.decode(transport.bodies.get(0), "UTF-8");
+		assertTrue(json.contains("\"stack_trace\":\"at " + getClass().getName() + ".event("));
+	}
+	
+	@Test
+	public void testWorkerSendsEventsInBatches() {
+		transport.release.countDown();
+		appender.setBatchSize(3);
+		appender.setBatchLinger(5000);
+		start();
+		
+		for (int i = 0; i < 3; i++) {
+			appender.doAppend(event(Level.ERROR));
+		}
+		appender.stop();
+		
+		assertEquals(1, transport.bodies.size());
+		assertEquals(3, appender.getConnector().getMetrics().getDelivered());
+	}
+	
+	@Test
+	public void testNeverBlockDropsEventsWhenTheQueueIsFull() throws InterruptedException {
+		appender.setQueueSize(2);
+		appender.setNeverBlock(true);
+		start();
+		
+		// The worker takes the first event and is held up delivering it.
+		appender.doAppend(event(Level.ERROR));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 5; i++) {
+			appender.doAppend(event(Level.ERROR));
+		}
+		assertEquals(3, appender.getConnector().getMetrics().getDropped());
+		
+		transport.release.countDown();
+		appender.stop();
+		assertEquals(3, transport.bodies.size());
+	}
+	
+	@Test(timeout = 10000)
+	public void testBlockedEventIsDroppedAfterMaxBlockTime() throws InterruptedException {
+		appender.setQueueSize(2);
+		appender.setMaxBlockTime(100);
+		start();
+		
+		appender.doAppend(event(Level.ERROR));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 3; i++) {
+			appender.doAppend(event(Level.ERROR));
+		}
+		assertEquals(1, appender.getConnector().getMetrics().getDropped());
+		
+		transport.release.countDown();
+		appender.stop();
+		assertEquals(3, transport.bodies.size());
+	}
+	
+	@Test
+	public void testBlockedEventIsQueuedOnceThereIsRoom() throws InterruptedException {
+		appender.setQueueSize(2);
+		start();
+		
+		appender.doAppend(event(Level.ERROR));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		appender.doAppend(event(Level.ERROR));
+		appender.doAppend(event(Level.ERROR));
+		
+		Thread release = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				transport.release.countDown();
+			}
+		};
+		release.start();
+		appender.doAppend(event(Level.ERROR));
+		release.join();
+		
+		appender.stop();
+		assertEquals(0, appender.getConnector().getMetrics().getDropped());
+		assertEquals(4, transport.bodies.size());
+	}
+	
+	@Test
+	public void testQueueDepthTightensSampling() throws InterruptedException {
+		appender.setQueueSize(4);
+		appender.setSamplingTargetRate(0);
+		appender.setNeverBlock(true);
+		start();
+		
+		appender.doAppend(event(Level.ERROR));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 4; i++) {
+			appender.doAppend(event(Level.ERROR));
+		}
+		
+		// A full queue is full load, where WARN is kept at the minimum rate.
+		for (int i = 0; i < 100; i++) {
+			assertTrue(appender.getConnector().sample(Severity.WARN) < 1.0);
+		}
+	}
+	
+	@Test
+	public void testInvalidQueueSizeFallsBackToTheDefault() {
+		transport.release.countDown();
+		appender.setQueueSize(0);
+		start();
+		
+		assertTrue(appender.isStarted());
+		appender.doAppend(event(Level.ERROR));
+		appender.stop();
+		assertEquals(1, transport.bodies.size());
+	}
+	
+	@Test
+	public void testInfoIsDiscardedWhenTheQueueIsNearlyFull() throws InterruptedException {
+		appender.setLevel(Level.INFO);
+		appender.setQueueSize(4);
+		appender.setDiscardingThreshold(2);
+		start();
+		
+		appender.doAppend(event(Level.ERROR));
+		assertTrue(transport.entered.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 3; i++) {
+			appender.doAppend(event(Level.ERROR));
+		}
+		appender.doAppend(event(Level.INFO));
+		appender.doAppend(event(Level.WARN));
+		assertEquals(1, appender.getConnector().getMetrics().getDropped());
+		
+		transport.release.countDown();
+		appender.stop();
+		assertEquals(5, transport.bodies.size());
+	}
+	
+	private void start() {
+		appender.start();
+		appender.getConnector().setTransport(transport);
+	}
+	
+	private LoggingEvent event(Level level) {
+		Logger logger = context.getLogger("com.example.OrderService");
+		return new LoggingEvent(Logger.class.getName(), logger, level, "Could not save order",
+				new IllegalStateException("Order table is locked"), null);
+	}
+	
+	/**
+	 * Records requests, holding up each one until released.
+	 */
+	private static class HoldingTransport implements Transport {
+		
+		final CountDownLatch entered = new CountDownLatch(1);
+		
+		final CountDownLatch release = new CountDownLatch(1);
+		
+		final List<String> bodies = new CopyOnWriteArrayList<String>();
+		
+		final List<String> threads = new CopyOnWriteArrayList<String>();
+		
+		@Override
+		public TransportResponse post(TransportRequest request) throws IOException {
+			entered.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			}
+			bodies.add(new String(request.getBody(), 0, request.getBodyLength(), "UTF-8"));
+			threads.add(Thread.currentThread().getName());
+			return new TransportResponse(200, null, "", false);
+		}
+		
+		@Override
+		public void close() {
+		}
+	}
+}
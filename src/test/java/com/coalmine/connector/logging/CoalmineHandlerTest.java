@@ -0,0 +1,107 @@
+package com.coalmine.connector.logging;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.coalmine.connector.NoneBlockingConnector;
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.transport.Transport;
+import com.coalmine.connector.transport.TransportRequest;
+import com.coalmine.connector.transport.TransportResponse;
+import com.coalmine.connector.transport.UrlConnectionTransport;
+
+public class CoalmineHandlerTest {
+	
+	@After
+	public void resetLogging() throws IOException {
+		LogManager.getLogManager().readConfiguration();
+	}
+	
+	@Test
+	public void testHandlerIsAsyncByDefault() throws IOException {
+		configure("");
+		CoalmineHandler handler = new CoalmineHandler();
+		try {
+			assertTrue(handler.connector instanceof NoneBlockingConnector);
+			assertEquals(Level.WARNING, handler.getLevel());
+		} finally {
+			handler.close();
+		}
+	}
+	
+	@Test
+	public void testSettingsAreReadFromLogManager() throws IOException {
+		String prefix = GaeCoalmineHandler.class.getName();
+		configure(prefix + ".level = SEVERE\n"
+				+ prefix + ".async = false\n"
+				+ prefix + ".shutdownTimeout = 100\n");
+		GaeCoalmineHandler handler = new GaeCoalmineHandler();
+		try {
+			assertFalse(handler.connector instanceof NoneBlockingConnector);
+			assertEquals(Level.SEVERE, handler.getLevel());
+			assertEquals(100, handler.shutdownTimeout);
+			assertTrue(handler.connector.getTransport() instanceof UrlConnectionTransport);
+		} finally {
+			handler.close();
+		}
+	}
+	
+	@Test
+	public void testGaeHandlerSendsSynchronously() throws IOException {
+		configure("");
+		GaeCoalmineHandler handler = new GaeCoalmineHandler();
+		try {
+			assertFalse(handler.connector instanceof NoneBlockingConnector);
+			assertTrue(handler.connector.getTransport() instanceof UrlConnectionTransport);
+		} finally {
+			handler.close();
+		}
+	}
+	
+	@Test
+	public void testCloseLeavesASuppliedConnectorRunning() {
+		final AtomicBoolean closed = new AtomicBoolean();
+		SimpleConnector connector = new SimpleConnector("AtestSignature");
+		connector.setTransport(new Transport() {
+			@Override
+			public TransportResponse post(TransportRequest request) {
+				return new TransportResponse(200, null, "", false);
+			}
+			
+			@Override
+			public void close() {
+				closed.set(true);
+			}
+		});
+		
+		new CoalmineHandler(connector).close();
+		assertFalse(closed.get());
+	}
+	
+	@Test
+	public void testInvalidWorkersFallBackToTheDefault() throws IOException {
+		String prefix = CoalmineHandler.class.getName();
+		configure(prefix + ".workers = 0\n"
+				+ prefix + ".queueSize = -1\n");
+		CoalmineHandler handler = new CoalmineHandler();
+		try {
+			assertTrue(handler.connector instanceof NoneBlockingConnector);
+		} finally {
+			handler.close();
+		}
+	}
+	
+	private static void configure(String properties) throws IOException {
+		LogManager.getLogManager().readConfiguration(new ByteArrayInputStream(properties.getBytes("UTF-8")));
+	}
+}
@@ -0,0 +1,34 @@
+package com.coalmine.connector.metrics;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+	
+	@Test
+	public void testPercentilesAreBucketUpperBounds() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(900));
+		
+		assertEquals(100, histogram.getCount());
+		assertEquals(4.096, histogram.getPercentile(50), 0);
+		assertEquals(4.096, histogram.getPercentile(99), 0);
+		assertEquals(900, histogram.getPercentile(99.9), 0);
+		assertEquals(900, histogram.getMax(), 0);
+		assertEquals(11.97, histogram.getMean(), 0.001);
+	}
+	
+	@Test
+	public void testEmptyHistogram() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(99), 0);
+		assertEquals(0, histogram.getMean(), 0);
+	}
+}
@@ -0,0 +1,249 @@
+package com.coalmine.connector.notification;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.coalmine.Coalmine;
+import com.coalmine.connector.SimpleConnector;
+
+public class LoggedNotificationTest {
+	
+	@Test
+	public void testStackTraceIsRenderedWhenSerialized() throws IOException {
+		Exception ex = new IllegalStateException("Broken");
+		LoggedNotification notification = new LoggedNotification(ex);
+		assertNull(notification.stackTrace);
+		assertNotNull(notification.frames);
+		assertEquals(ex.getStackTrace()[0].getMethodName(), notification.method);
+		
+		StringBuilder json = new StringBuilder();
+		notification.writeJson(json);
+		assertNull(notification.frames);
+		assertTrue(notification.stackTrace.startsWith(ex.getStackTrace()[0].toString() + "\n"));
+		assertTrue(json.toString().contains("\"stack_trace\":"));
+	}
+	
+	@Test
+	public void testFingerprintDoesNotDependOnRendering() {
+		Exception ex = new IllegalStateException("Broken");
+		LoggedNotification deferred = new LoggedNotification(ex);
+		LoggedNotification rendered = new LoggedNotification(ex);
+		rendered.getStackTrace();
+		
+		assertEquals(rendered.getFingerprint(), deferred.getFingerprint());
+	}
+	
+	@Test
+	public void testFingerprintMasksMessageButNotFrameLines() {
+		StackTraceElement[] frames = { new StackTraceElement("com.example.Foo", "bar", "Foo.java", 10) };
+		StackTraceElement[] moved = { new StackTraceElement("com.example.Foo", "bar", "Foo.java", 20) };
+		Exception first = new IllegalStateException("User 12 not found");
+		first.setStackTrace(frames);
+		Exception second = new IllegalStateException("User 42 not found");
+		second.setStackTrace(frames);
+		Exception elsewhere = new IllegalStateException("User 12 not found");
+		elsewhere.setStackTrace(moved);
+		
+		String fingerprint = new LoggedNotification(first).getFingerprint();
+		assertEquals(fingerprint, new LoggedNotification(second).getFingerprint());
+		assertFalse(fingerprint.equals(new LoggedNotification(elsewhere).getFingerprint()));
+	}
+	
+	@Test
+	public void testServerSnapshotFollowsSystemProperties() {
+		ServerProperties before = ServerProperties.get();
+		assertSame(before, ServerProperties.get());
+		
+		System.setProperty("coalmine.test.property", "first");
+		try {
+			ServerProperties added = ServerProperties.get();
+			assertNotSame(before, added);
+			assertEquals("first", added.get("coalmine.test.property"));
+			
+			System.setProperty("coalmine.test.property", "second");
+			assertEquals("second", ServerProperties.refresh().get("coalmine.test.property"));
+		} finally {
+			System.clearProperty("coalmine.test.property");
+		}
+		assertNull(ServerProperties.get().get("coalmine.test.property"));
+	}
+	
+	@Test
+	public void testHostnameOverrideReplacesTheResolvedName() {
+		Coalmine.setHostname("override.example.com");
+		try {
+			assertEquals("override.example.com", LocalHostname.get());
+			assertEquals("override.example.com", new LoggedNotification().hostname);
+		} finally {
+			Coalmine.setHostname(null);
+		}
+	}
+	
+	@Test
+	public void testHostnameIsKnownRightAfterStart() throws IOException {
+		LocalHostname.reset();
+		SimpleConnector connector = new SimpleConnector("AtestSignature");
+		connector.start();
+		try {
+			assertEquals(InetAddress.getLocalHost().getHostName(), new LoggedNotification().hostname);
+		} finally {
+			connector.stop();
+		}
+	}
+	
+	@Test
+	public void testFrameCacheIsBounded() {
+		StackFrameCache cache = new StackFrameCache(1);
+		StackTraceElement first = new StackTraceElement("com.example.Foo", "bar", "Foo.java", 10);
+		StackTraceElement second = new StackTraceElement("com.example.Foo", "baz", "Foo.java", 20);
+		
+		assertEquals(first.toString(), cache.render(first));
+		assertEquals(first.toString(), cache.render(first));
+		assertEquals(second.toString(), cache.render(second));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(2, cache.getMissCount());
+		assertEquals(1, cache.getSize());
+	}
+	
+	@Test
+	public void testLongStackTraceKeepsHeadAndTail() {
+		StackTraceElement[] frames = new StackTraceElement[1000];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new StackTraceElement("com.example.Recursive", "call" + i, "Recursive.java", i);
+		}
+		PayloadLimits limits = new PayloadLimits();
+		limits.setMaxFrames(8);
+		
+		LoggedNotification notification = new LoggedNotification();
+		notification.setLimits(limits);
+		notification.setStackTrace(frames);
+		String[] lines = notification.getStackTrace().split("\n");
+		
+		assertEquals(9, lines.length);
+		assertEquals(frames[5].toString(), lines[5]);
+		assertEquals("... 992 frames omitted", lines[6]);
+		assertEquals(frames[998].toString(), lines[7]);
+		assertEquals(frames[999].toString(), lines[8]);
+	}
+	
+	@Test
+	public void testStackTraceStaysWithinTheSizeBudget() {
+		StackTraceElement[] frames = new StackTraceElement[1000];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new StackTraceElement("com.example.Recursive", "call" + i, "Recursive.java", i);
+		}
+		PayloadLimits limits = new PayloadLimits();
+		limits.setMaxFrames(1000);
+		limits.setDeniedKeys("*");
+		limits.setMaxBytes(2000);
+		
+		LoggedNotification notification = new LoggedNotification();
+		notification.setLimits(limits);
+		notification.setStackTrace(frames);
+		String stackTrace = notification.getStackTrace();
+		
+		assertTrue(stackTrace.length() <= 2000);
+		assertTrue(stackTrace.endsWith(" more frames omitted\n"));
+		assertTrue(notification.server.isEmpty());
+	}
+	
+	@Test
+	public void testEverythingCapturedCountsAgainstTheSizeBudget() {
+		PayloadLimits limits = new PayloadLimits();
+		limits.setDeniedKeys("*");
+		limits.setMaxBytes(3000);
+		StringBuilder value = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			value.append("0123456789");
+		}
+		Map<String, String> mdc = new HashMap<String, String>();
+		for (int i = 0; i < 100; i++) {
+			mdc.put("key" + i, value.toString());
+		}
+		StackTraceElement[] frames = new StackTraceElement[100];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new StackTraceElement("com.example.Recursive", "call" + i, "Recursive.java", i);
+		}
+		
+		LoggedNotification notification = new LoggedNotification();
+		notification.setLimits(limits);
+		notification.setEnvironment(mdc);
+		notification.setStackTrace(frames);
+		
+		int size = notification.getStackTrace().length();
+		for (Map.Entry<String, String> entry : notification.environment.entrySet()) {
+			size += entry.getKey().length() + entry.getValue().length();
+		}
+		assertEquals(2, notification.environment.size());
+		assertTrue(size <= 3000);
+		assertTrue(notification.getStackTrace().endsWith(" more frames omitted\n"));
+	}
+	
+	@Test
+	public void testMessageCountsAgainstTheSizeBudget() {
+		PayloadLimits limits = new PayloadLimits();
+		limits.setDeniedKeys("*");
+		limits.setMaxValueLength(100);
+		limits.setMaxBytes(1000);
+		StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			message.append("0123456789");
+		}
+		StackTraceElement[] frames = new StackTraceElement[100];
+		for (int i = 0; i < frames.length; i++) {
+			frames[i] = new StackTraceElement("com.example.Recursive", "call" + i, "Recursive.java", i);
+		}
+		
+		LoggedNotification notification = new LoggedNotification();
+		notification.setLimits(limits);
+		int before = notification.used;
+		notification.setMessage("Replaced");
+		notification.setMessage(message.toString());
+		notification.setStackTrace(frames);
+		
+		assertEquals(100 + PayloadLimits.ELLIPSIS.length(), notification.message.length());
+		assertEquals(before + notification.message.length(), notification.used);
+		assertTrue(notification.message.length() + notification.getStackTrace().length() <= 1000);
+	}
+	
+	@Test
+	public void testJsonRoundTrip() throws IOException {
+		LoggedNotification notification = new LoggedNotification(new IllegalStateException("Broken \"quotes\""));
+		notification.setApplicationEnvironment("Test");
+		notification.setVersion("1.0.0");
+		notification.setUserId("42");
+		notification.setSampleRate(0.5);
+		notification.setOccurrences(3, 1000L, 2000L);
+		Map<String, String> environment = new HashMap<String, String>();
+		environment.put("Content Type", "text/html");
+		notification.setEnvironment(environment);
+		
+		StringBuilder json = new StringBuilder();
+		notification.writeJson(json);
+		assertTrue(json.toString().startsWith("{\"app_environment\":\"Test\",\"message\":\"[IllegalStateException] Broken \\\"quotes\\\"\""));
+		assertFalse(json.toString().contains("\"url\""));
+		
+		LoggedNotification read = NotificationGson.get().fromJson(json.toString(), LoggedNotification.class);
+		assertEquals(notification.message, read.message);
+		assertEquals(notification.getStackTrace(), read.getStackTrace());
+		assertEquals(notification.lineNumber, read.lineNumber);
+		assertEquals(notification.server, read.server);
+		assertEquals(environment, read.environment);
+		assertEquals("42", read.userId);
+		assertEquals(Integer.valueOf(3), read.occurrences);
+		assertEquals(Long.valueOf(2000L), read.lastSeen);
+		assertEquals(Double.valueOf(0.5), read.getSampleRate());
+	}
+}
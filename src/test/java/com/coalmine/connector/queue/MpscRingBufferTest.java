@@ -0,0 +1,91 @@
+package com.coalmine.connector.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+	
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(128, new MpscRingBuffer<Integer>(100, new BlockingWaitStrategy()).capacity());
+		assertEquals(1, new MpscRingBuffer<Integer>(1, new BlockingWaitStrategy()).capacity());
+	}
+	
+	@Test
+	public void testOfferFailsWhenFull() {
+		MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(2, new BlockingWaitStrategy());
+		
+		assertTrue(buffer.offer(1));
+		assertTrue(buffer.offer(2));
+		assertFalse(buffer.offer(3));
+		assertEquals(Integer.valueOf(1), buffer.poll());
+		assertTrue(buffer.offer(3));
+		assertEquals(Integer.valueOf(2), buffer.poll());
+		assertEquals(Integer.valueOf(3), buffer.poll());
+		assertNull(buffer.poll());
+	}
+	
+	@Test
+	public void testConcurrentProducers() throws InterruptedException {
+		testConcurrentProducers(new BlockingWaitStrategy());
+		testConcurrentProducers(new ParkWaitStrategy());
+		testConcurrentProducers(new SpinThenParkWaitStrategy());
+	}
+	
+	protected void testConcurrentProducers(WaitStrategy waitStrategy) throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(64, waitStrategy);
+		final CountDownLatch start = new CountDownLatch(1);
+		
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < perProducer; i++) {
+						while (!buffer.offer(producer * perProducer + i)) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		start.countDown();
+		boolean[] seen = new boolean[producers * perProducer];
+		int[] lastPerProducer = new int[producers];
+		Arrays.fill(lastPerProducer, -1);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		for (int received = 0; received < seen.length;) {
+			Integer value = buffer.poll();
+			if (value == null) {
+				assertTrue("Timed out", System.nanoTime() < deadline);
+				buffer.await(TimeUnit.MILLISECONDS.toNanos(10));
+				continue;
+			}
+			
+			assertFalse(seen[value]);
+			seen[value] = true;
+			int producer = value / perProducer;
+			assertTrue("Out of order", value > lastPerProducer[producer]);
+			lastPerProducer[producer] = value;
+			received++;
+		}
+	}
+}
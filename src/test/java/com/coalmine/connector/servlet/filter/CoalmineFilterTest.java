@@ -0,0 +1,91 @@
+package com.coalmine.connector.servlet.filter;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+
+import org.junit.Test;
+
+import com.coalmine.connector.NoneBlockingConnector;
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.transport.UrlConnectionTransport;
+
+public class CoalmineFilterTest {
+	
+	@Test
+	public void testFilterSendsInTheBackground() throws ServletException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("signature", "abc");
+		params.put("queue-size", "16");
+		
+		CoalmineFilter filter = new CoalmineFilter();
+		filter.init(new Config(params));
+		try {
+			assertTrue(filter.connector instanceof NoneBlockingConnector);
+		} finally {
+			filter.destroy();
+		}
+	}
+	
+	@Test
+	public void testGaeFilterSendsSynchronouslyOverUrlConnection() throws ServletException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("signature", "abc");
+		params.put("jul-handler", "false");
+		
+		GaeCoalmineFilter filter = new GaeCoalmineFilter();
+		filter.init(new Config(params));
+		try {
+			assertTrue(filter.connector.getClass() == SimpleConnector.class);
+			assertTrue(filter.connector.getTransport() instanceof UrlConnectionTransport);
+		} finally {
+			filter.destroy();
+		}
+	}
+	
+	@Test(expected = ServletException.class)
+	public void testUnknownOverflowPolicyIsRejected() throws ServletException {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("signature", "abc");
+		params.put("overflow", "block");
+		
+		new CoalmineFilter().init(new Config(params));
+	}
+	
+	private static class Config implements FilterConfig {
+		
+		private final Map<String, String> params;
+		
+		Config(Map<String, String> params) {
+			this.params = params;
+		}
+		
+		@Override
+		public String getFilterName() {
+			return "coalmine";
+		}
+		
+		@Override
+		public ServletContext getServletContext() {
+			return null;
+		}
+		
+		@Override
+		public String getInitParameter(String name) {
+			return params.get(name);
+		}
+		
+		@Override
+		@SuppressWarnings("rawtypes")
+		public Enumeration getInitParameterNames() {
+			return Collections.enumeration(params.keySet());
+		}
+	}
+}
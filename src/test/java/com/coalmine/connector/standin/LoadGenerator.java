@@ -0,0 +1,164 @@
+package com.coalmine.connector.standin;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a target at a steady rate from several threads and measures how long
+ * each call holds up the calling thread. Calls follow a fixed schedule, so a
+ * slow call is followed by catching up rather than by a lower offered rate.
+ */
+public class LoadGenerator {
+	
+	/**
+	 * Something reporting an error, e.g. a connector's send() or a logger.
+	 */
+	public interface Target {
+		
+		/**
+		 * @param sequence Number of the call, unique across threads
+		 */
+		void fire(long sequence) throws Exception;
+	}
+	
+	private final int ratePerSecond;
+	
+	private final int threads;
+	
+	/**
+	 * @param ratePerSecond Calls per second, across all threads
+	 * @param threads Number of calling threads
+	 */
+	public LoadGenerator(int ratePerSecond, int threads) {
+		if (ratePerSecond < 1 || threads < 1) {
+			throw new IllegalArgumentException("Rate and threads must be at least 1");
+		}
+		
+		this.ratePerSecond = ratePerSecond;
+		this.threads = threads;
+	}
+	
+	/**
+	 * Call the target at the configured rate for the given time.
+	 * 
+	 * @param target What to call
+	 * @param durationMillis How long to keep calling
+	 * @return Call latencies and throughput
+	 */
+	public Result run(final Target target, long durationMillis) throws InterruptedException {
+		final long interval = TimeUnit.SECONDS.toNanos(1) * threads / ratePerSecond;
+		final int callsPerThread = (int) Math.max(1, durationMillis * ratePerSecond / 1000 / threads);
+		final long[][] latencies = new long[threads][callsPerThread];
+		final long[] errors = new long[threads];
+		final CountDownLatch done = new CountDownLatch(threads);
+		final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10);
+		
+		for (int t = 0; t < threads; t++) {
+			final int index = t;
+			Thread thread = new Thread("coalmine-load-" + t) {
+				@Override
+				public void run() {
+					try {
+						long[] own = latencies[index];
+						// Threads are staggered so calls are spread evenly over time.
+						long next = start + interval * index / threads;
+						for (int i = 0; i < callsPerThread; i++) {
+							long wait = next - System.nanoTime();
+							if (wait > 0) {
+								LockSupport.parkNanos(wait);
+							}
+							long called = System.nanoTime();
+							try {
+								target.fire((long) i * threads + index);
+							} catch (Exception e) {
+								errors[index]++;
+							}
+							own[i] = System.nanoTime() - called;
+							next += interval;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		done.await();
+		long elapsed = System.nanoTime() - start;
+		
+		long[] all = new long[threads * callsPerThread];
+		long errorCount = 0;
+		for (int t = 0; t < threads; t++) {
+			System.arraycopy(latencies[t], 0, all, t * callsPerThread, callsPerThread);
+			errorCount += errors[t];
+		}
+		return new Result(all, errorCount, elapsed);
+	}
+	
+	/**
+	 * What a run measured. Latencies are of the calling thread, in microseconds.
+	 */
+	public static class Result {
+		
+		private final long[] latencies;
+		
+		private final long errors;
+		
+		private final long elapsedNanos;
+		
+		Result(long[] latencies, long errors, long elapsedNanos) {
+			this.latencies = latencies;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+			Arrays.sort(latencies);
+		}
+		
+		public long getCalls() {
+			return latencies.length;
+		}
+		
+		/**
+		 * @return Calls that threw, e.g. a filter rethrowing the request's exception
+		 */
+		public long getErrors() {
+			return errors;
+		}
+		
+		/**
+		 * @return Calls per second actually achieved
+		 */
+		public double getThroughput() {
+			return latencies.length * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+		}
+		
+		/**
+		 * @param percentile From 0 to 100
+		 * @return The latency in microseconds
+		 */
+		public double getPercentile(double percentile) {
+			int index = (int) Math.ceil(percentile / 100.0 * latencies.length) - 1;
+			return latencies[Math.max(0, Math.min(latencies.length - 1, index))] / 1000.0;
+		}
+		
+		/**
+		 * @param delivered Notifications the server accepted
+		 * @return Fraction of calls whose notification did not arrive
+		 */
+		public double getDropRate(long delivered) {
+			return Math.max(0, 1.0 - delivered / (double) latencies.length);
+		}
+		
+		/**
+		 * @param delivered Notifications the server accepted
+		 * @return A one line summary
+		 */
+		public String report(long delivered) {
+			return String.format("calls=%d throughput=%.0f/s delivered=%d drop=%.1f%% caller p50=%.1fus p99=%.1fus p999=%.1fus",
+					getCalls(), getThroughput(), delivered, getDropRate(delivered) * 100,
+					getPercentile(50), getPercentile(99), getPercentile(99.9));
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package com.coalmine.connector.standin;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import com.coalmine.connector.Connector;
+import com.coalmine.connector.logging.CoalmineAppender;
+import com.coalmine.connector.notification.LoggedNotification;
+import com.coalmine.connector.servlet.filter.CoalmineFilter;
+import com.coalmine.connector.standin.LoadGenerator.Target;
+
+/**
+ * The ways an application hands errors to Coalmine, as load generator
+ * targets: a connector directly, the logback appender and the servlet filter.
+ */
+public final class LoadTargets {
+	
+	static final String SIGNATURE = "standin-signature";
+	
+	private static final Exception EXCEPTION = createException();
+	
+	private LoadTargets() {
+	}
+	
+	/**
+	 * @return A target sending a notification with a stack trace per call
+	 */
+	public static Target send(final Connector connector) {
+		return new Target() {
+			@Override
+			public void fire(long sequence) {
+				LoggedNotification notification = new LoggedNotification(EXCEPTION);
+				notification.setMessage("Load " + sequence);
+				connector.send(notification);
+			}
+		};
+	}
+	
+	/**
+	 * @return A started appender logging to the stand-in server
+	 */
+	public static CoalmineAppender appender(StandInServer server, boolean async) {
+		CoalmineAppender appender = new CoalmineAppender();
+		appender.setContext(new LoggerContext());
+		appender.setSignature(SIGNATURE);
+		appender.setEnvironment("Production");
+		appender.setAsync(async);
+		appender.start();
+		appender.getConnector().setUrl(server.getUrl());
+		return appender;
+	}
+	
+	/**
+	 * @return A target logging an error with a stack trace per call
+	 */
+	public static Target log(final CoalmineAppender appender) {
+		final Logger logger = ((LoggerContext) appender.getContext()).getLogger("com.example.OrderService");
+		return new Target() {
+			@Override
+			public void fire(long sequence) {
+				appender.doAppend(new LoggingEvent(Logger.class.getName(), logger, Level.ERROR,
+						"Load " + sequence, EXCEPTION, null));
+			}
+		};
+	}
+	
+	/**
+	 * @param params Init-params besides the signature, e.g. async or queue-size
+	 * @return An initialised filter reporting to the stand-in server
+	 */
+	public static CoalmineFilter filter(final StandInServer server, Map<String, String> params) throws ServletException {
+		final Map<String, String> config = new HashMap<String, String>(params);
+		config.put("signature", SIGNATURE);
+		
+		CoalmineFilter filter = new CoalmineFilter() {
+			@Override
+			protected Connector createConnector(FilterConfig filterConfig) throws ServletException {
+				Connector connector = super.createConnector(filterConfig);
+				connector.setUrl(server.getUrl());
+				return connector;
+			}
+		};
+		filter.init(stub(FilterConfig.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getInitParameter")) {
+					return config.get(args[0]);
+				} else if (method.getName().equals("getInitParameterNames")) {
+					return Collections.enumeration(config.keySet());
+				}
+				return null;
+			}
+		}));
+		return filter;
+	}
+	
+	/**
+	 * @return A target passing a request that fails through the filter per call
+	 */
+	public static Target request(final CoalmineFilter filter) {
+		final HttpServletRequest request = stub(HttpServletRequest.class, new RequestHandler());
+		final FilterChain chain = new FilterChain() {
+			@Override
+			public void doFilter(ServletRequest request, ServletResponse response) {
+				throw new IllegalStateException("Order could not be saved");
+			}
+		};
+		return new Target() {
+			@Override
+			public void fire(long sequence) throws IOException, ServletException {
+				try {
+					filter.doFilter(request, null, chain);
+				} catch (IllegalStateException expected) {
+					// The filter rethrows after reporting; the container would see it.
+				}
+			}
+		};
+	}
+	
+	private static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(LoadTargets.class.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+	
+	private static Exception createException() {
+		try {
+			throw new IllegalStateException("Order could not be saved");
+		} catch (IllegalStateException e) {
+			return new RuntimeException("Checkout failed", e);
+		}
+	}
+	
+	/**
+	 * Answers for a small GET request. Anything not listed is null or 0.
+	 */
+	private static class RequestHandler implements InvocationHandler {
+		
+		private final Map<String, String> headers = new HashMap<String, String>();
+		
+		RequestHandler() {
+			headers.put("Host", "shop.example.com");
+			headers.put("User-Agent", "Mozilla/5.0 (X11; Linux x86_64)");
+			headers.put("Accept", "text/html");
+		}
+		
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("getParameterNames")) {
+				return Collections.enumeration(Collections.singleton("order"));
+			} else if (name.equals("getParameterValues")) {
+				return new String[] { "1234" };
+			} else if (name.equals("getHeaderNames")) {
+				return Collections.enumeration(headers.keySet());
+			} else if (name.equals("getHeader")) {
+				return headers.get(args[0]);
+			} else if (name.equals("getRequestURL")) {
+				return new StringBuffer("http://shop.example.com/checkout");
+			} else if (name.equals("getMethod")) {
+				return "GET";
+			} else if (name.equals("getRemoteAddr")) {
+				return "192.0.2.10";
+			} else if (name.equals("getQueryString")) {
+				return "order=1234";
+			}
+			
+			Class<?> type = method.getReturnType();
+			if (type == int.class || type == long.class) {
+				return type == int.class ? (Object) 0 : (Object) 0L;
+			} else if (type == boolean.class) {
+				return false;
+			} else if (type == Enumeration.class) {
+				return Collections.enumeration(Collections.emptyList());
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.coalmine.connector.standin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.coalmine.connector.NoneBlockingConnector;
+import com.coalmine.connector.SimpleConnector;
+import com.coalmine.connector.logging.CoalmineAppender;
+import com.coalmine.connector.servlet.filter.CoalmineFilter;
+
+/**
+ * Short load runs against the stand-in server. Longer runs can be made with
+ * -Dstandin.rate=5000 -Dstandin.duration=30000 -Dstandin.threads=16; each run
+ * logs throughput, drop rate and the overhead on the calling thread at debug.
+ */
+public class StandInLoadTest {
+	
+	private static final int RATE = Integer.getInteger("standin.rate", 500);
+	
+	private static final long DURATION = Long.getLong("standin.duration", 500);
+	
+	private static final int THREADS = Integer.getInteger("standin.threads", 4);
+	
+	private static final Logger LOG = LoggerFactory.getLogger(StandInLoadTest.class);
+	
+	private StandInServer server;
+	
+	private LoadGenerator load;
+	
+	@Before
+	public void setUp() throws Exception {
+		server = new StandInServer();
+		server.start();
+		load = new LoadGenerator(RATE, THREADS);
+	}
+	
+	@After
+	public void tearDown() {
+		server.stop();
+	}
+	
+	@Test
+	public void testSimpleConnectorDeliversEverything() throws Exception {
+		SimpleConnector connector = new SimpleConnector(LoadTargets.SIGNATURE);
+		connector.setUrl(server.getUrl());
+		
+		LoadGenerator.Result result = load.run(LoadTargets.send(connector), DURATION);
+		report("SimpleConnector", result);
+		assertEquals(result.getCalls(), server.getAcceptedCount());
+	}
+	
+	@Test
+	public void testNoneBlockingConnectorDeliversEverythingItQueued() throws Exception {
+		NoneBlockingConnector connector = new NoneBlockingConnector(LoadTargets.SIGNATURE, 4096);
+		connector.setUrl(server.getUrl());
+		connector.start();
+		
+		LoadGenerator.Result result = load.run(LoadTargets.send(connector), DURATION);
+		connector.stop(10000);
+		report("NoneBlockingConnector", result);
+		assertEquals(result.getCalls(), server.getAcceptedCount() + connector.getDroppedCount());
+	}
+	
+	@Test
+	public void testThrottledConnectorWaitsForRetryAfter() throws Exception {
+		server.setThrottleRate(1.0, 60);
+		SimpleConnector connector = new SimpleConnector(LoadTargets.SIGNATURE);
+		connector.setUrl(server.getUrl());
+		
+		LoadGenerator.Result result = load.run(LoadTargets.send(connector), DURATION);
+		report("SimpleConnector, throttled", result);
+		assertEquals(0, server.getAcceptedCount());
+		// Only the requests already on their way when the first 429 came back.
+		assertTrue(server.getRequestCount() <= THREADS);
+	}
+	
+	@Test
+	public void testNoneBlockingConnectorSurvivesFailures() throws Exception {
+		server.setLatency(2, 8);
+		server.setErrorRate(0.1);
+		server.setHangUpRate(0.1);
+		NoneBlockingConnector connector = new NoneBlockingConnector(LoadTargets.SIGNATURE, 256);
+		connector.setWorkers(4);
+		connector.setUrl(server.getUrl());
+		connector.start();
+		
+		LoadGenerator.Result result = load.run(LoadTargets.send(connector), DURATION);
+		connector.stop(5000);
+		report("NoneBlockingConnector, failing", result);
+		assertTrue(server.getErrorCount() + server.getHangUpCount() > 0);
+		assertTrue(server.getAcceptedCount() > 0);
+	}
+	
+	@Test
+	public void testAppender() throws Exception {
+		CoalmineAppender appender = LoadTargets.appender(server, true);
+		
+		LoadGenerator.Result result = load.run(LoadTargets.log(appender), DURATION);
+		// Events wait in the appender's queue, not the connector's, so there
+		// is nothing to flush on the connector: stop() sends what is queued.
+		appender.stop();
+		report("CoalmineAppender", result);
+		assertEquals(result.getCalls(), server.getAcceptedCount() + appender.getConnector().getMetrics().getDropped());
+	}
+	
+	@Test
+	public void testFilter() throws Exception {
+		Map<String, String> params = new HashMap<String, String>();
+		params.put("queue-size", "4096");
+		CoalmineFilter filter = LoadTargets.filter(server, params);
+		
+		LoadGenerator.Result result = load.run(LoadTargets.request(filter), DURATION);
+		filter.destroy();
+		report("CoalmineFilter", result);
+		assertEquals(0, result.getErrors());
+		assertTrue(server.getAcceptedCount() > 0);
+	}
+	
+	private void report(String name, LoadGenerator.Result result) {
+		LOG.debug("{}: {}", name, result.report(server.getAcceptedCount()));
+	}
+}
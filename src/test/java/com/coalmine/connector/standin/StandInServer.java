@@ -0,0 +1,240 @@
+package com.coalmine.connector.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Coalmine notify API, so connectors can be load
+ * tested without reaching coalmineapp.com. It accepts the same form encoded
+ * signature and json fields, counts the notifications it receives, and can
+ * be made to misbehave: respond slowly, throttle with 429 and Retry-After,
+ * fail with 500, or hang up without responding.
+ *
+ * Misbehaviour is chosen at random per request with the configured rates.
+ */
+public class StandInServer {
+	
+	private final HttpServer server;
+	
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	
+	private final Random random = new Random();
+	
+	private volatile long latency;
+	
+	private volatile long latencyJitter;
+	
+	private volatile double throttleRate;
+	
+	private volatile int retryAfter = 1;
+	
+	private volatile double errorRate;
+	
+	private volatile double hangUpRate;
+	
+	private final AtomicLong requests = new AtomicLong();
+	
+	private final AtomicLong accepted = new AtomicLong();
+	
+	private final AtomicLong throttled = new AtomicLong();
+	
+	private final AtomicLong errors = new AtomicLong();
+	
+	private final AtomicLong hangUps = new AtomicLong();
+	
+	public StandInServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+		server.createContext("/notify", new NotifyHandler());
+		server.setExecutor(executor);
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @return The URL to give to Connector.setUrl()
+	 */
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/notify";
+	}
+	
+	/**
+	 * @param latency Milliseconds to wait before responding
+	 * @param jitter Up to this many more milliseconds, chosen at random
+	 */
+	public void setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.latencyJitter = jitter;
+	}
+	
+	/**
+	 * @param throttleRate Fraction of requests answered with 429
+	 * @param retryAfter Seconds sent in the Retry-After header
+	 */
+	public void setThrottleRate(double throttleRate, int retryAfter) {
+		this.throttleRate = throttleRate;
+		this.retryAfter = retryAfter;
+	}
+	
+	/**
+	 * @param errorRate Fraction of requests answered with 500
+	 */
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+	
+	/**
+	 * @param hangUpRate Fraction of requests whose connection is closed without
+	 *            a response. This is a clean close (FIN), not a TCP reset.
+	 */
+	public void setHangUpRate(double hangUpRate) {
+		this.hangUpRate = hangUpRate;
+	}
+	
+	public long getRequestCount() {
+		return requests.get();
+	}
+	
+	/**
+	 * @return Number of notifications accepted with a 200
+	 */
+	public long getAcceptedCount() {
+		return accepted.get();
+	}
+	
+	public long getThrottledCount() {
+		return throttled.get();
+	}
+	
+	public long getErrorCount() {
+		return errors.get();
+	}
+	
+	public long getHangUpCount() {
+		return hangUps.get();
+	}
+	
+	private double draw() {
+		synchronized (random) {
+			return random.nextDouble();
+		}
+	}
+	
+	/**
+	 * @return The number of notifications in a request body, or -1 if it is malformed
+	 */
+	static int countNotifications(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+			in = new GZIPInputStream(in);
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		for (int read = in.read(chunk); read != -1; read = in.read(chunk)) {
+			body.write(chunk, 0, read);
+		}
+		
+		String json = null;
+		boolean signed = false;
+		for (String field : body.toString("US-ASCII").split("&")) {
+			if (field.startsWith("signature=") && field.length() > "signature=".length()) {
+				signed = true;
+			} else if (field.startsWith("json=")) {
+				json = URLDecoder.decode(field.substring("json=".length()), "UTF-8");
+			}
+		}
+		if (!signed || json == null) {
+			return -1;
+		}
+		
+		try {
+			JsonElement parsed = new JsonParser().parse(json);
+			return parsed.isJsonArray() ? parsed.getAsJsonArray().size() : parsed.isJsonObject() ? 1 : -1;
+		} catch (RuntimeException e) {
+			return -1;
+		}
+	}
+	
+	private class NotifyHandler implements HttpHandler {
+		
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			requests.incrementAndGet();
+			try {
+				int count = countNotifications(exchange);
+				pause();
+				
+				double roll = draw();
+				if (roll < hangUpRate) {
+					hangUps.incrementAndGet();
+					// Closing without a response ends the connection cleanly; the
+					// client sees it closed before a status line arrived.
+					return;
+				}
+				roll -= hangUpRate;
+				if (roll < throttleRate) {
+					throttled.incrementAndGet();
+					exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+					respond(exchange, 429);
+					return;
+				}
+				roll -= throttleRate;
+				if (roll < errorRate) {
+					errors.incrementAndGet();
+					respond(exchange, 500);
+					return;
+				}
+				
+				if (count < 0) {
+					respond(exchange, 400);
+					return;
+				}
+				accepted.addAndGet(count);
+				respond(exchange, 200);
+			} finally {
+				exchange.close();
+			}
+		}
+		
+		private void pause() {
+			long wait = latency;
+			if (latencyJitter > 0) {
+				wait += (long) (draw() * latencyJitter);
+			}
+			if (wait <= 0) {
+				return;
+			}
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		private void respond(HttpExchange exchange, int status) throws IOException {
+			// No body: headers and body written separately would meet the
+			// client's delayed ACK and add ~40 ms to every response.
+			exchange.sendResponseHeaders(status, -1);
+		}
+	}
+}
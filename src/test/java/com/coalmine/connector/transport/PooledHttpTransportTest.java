@@ -0,0 +1,185 @@
+package com.coalmine.connector.transport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class PooledHttpTransportTest {
+	
+	protected HttpServer server;
+	
+	protected PooledHttpTransport transport;
+	
+	/** Requests received. */
+	protected final AtomicInteger received = new AtomicInteger();
+	
+	/** The request the server hangs up on part way through its response. */
+	protected volatile int hangUpOn;
+	
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/notify", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				while (in.read() != -1) {
+					// drain
+				}
+				if (received.incrementAndGet() == hangUpOn) {
+					exchange.sendResponseHeaders(200, 10);
+					OutputStream out = exchange.getResponseBody();
+					out.write("OK".getBytes("UTF-8"));
+					out.flush();
+					exchange.close();
+					return;
+				}
+				byte[] body = "OK".getBytes("UTF-8");
+				exchange.getResponseHeaders().add("Retry-After", "7");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.start();
+		transport = new PooledHttpTransport();
+	}
+	
+	@After
+	public void tearDown() {
+		transport.close();
+		server.stop(0);
+	}
+	
+	@Test
+	public void testConnectionIsReused() throws IOException {
+		TransportResponse first = transport.post(newRequest());
+		TransportResponse second = transport.post(newRequest());
+		
+		assertEquals(200, first.getStatusCode());
+		assertEquals("OK", second.getBody());
+		assertEquals("7", second.getHeader("retry-after"));
+		assertFalse(first.isConnectionReused());
+		assertTrue(second.isConnectionReused());
+		assertEquals(1, transport.getConnectionsOpened());
+		assertEquals(1, transport.getConnectionsReused());
+	}
+	
+	@Test
+	public void testRequestIsNotRepeatedWhenTheResponseIsCutShort() throws IOException {
+		hangUpOn = 2;
+		transport.post(newRequest());
+		try {
+			transport.post(newRequest());
+			fail("Expected the truncated response to fail the request");
+		} catch (IOException expected) {
+			// The server got the request, so sending it again would duplicate it.
+		}
+		
+		assertEquals(2, received.get());
+	}
+	
+	@Test
+	public void testConnectionClosedWhileIdleIsReplaced() throws Exception {
+		final ServerSocket closing = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread server = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// Answer one request per connection, then close it as an idle timeout would.
+					while (true) {
+						Socket socket = closing.accept();
+						try {
+							respond(socket);
+						} finally {
+							socket.close();
+						}
+					}
+				} catch (IOException e) {
+					// Server socket closed
+				}
+			}
+		});
+		server.start();
+		try {
+			String url = "http://127.0.0.1:" + closing.getLocalPort() + "/notify";
+			assertEquals(200, transport.post(newRequest(url)).getStatusCode());
+			assertEquals(200, transport.post(newRequest(url)).getStatusCode());
+			assertEquals(200, transport.post(newRequest(url)).getStatusCode());
+			assertEquals(3, transport.getConnectionsOpened());
+		} finally {
+			closing.close();
+			server.join(1000);
+		}
+	}
+	
+	@Test
+	public void testIdleConnectionsAreEvicted() throws IOException {
+		transport.close();
+		transport = new PooledHttpTransport(4, 0);
+		
+		transport.post(newRequest());
+		transport.evictIdleConnections();
+		
+		assertEquals(0, transport.getIdleConnections());
+		assertEquals(1, transport.getConnectionsEvicted());
+	}
+	
+	protected TransportRequest newRequest() throws IOException {
+		return newRequest("http://127.0.0.1:" + server.getAddress().getPort() + "/notify");
+	}
+	
+	protected TransportRequest newRequest(String url) throws IOException {
+		TransportRequest request = new TransportRequest(url, "application/x-www-form-urlencoded");
+		byte[] body = "json=%7B%7D".getBytes("UTF-8");
+		request.setBody(body, body.length);
+		request.setConnectTimeout(1000);
+		request.setReadTimeout(1000);
+		return request;
+	}
+	
+	/**
+	 * Read one request and answer it with a keep-alive 200.
+	 */
+	protected static void respond(Socket socket) throws IOException {
+		InputStream in = socket.getInputStream();
+		StringBuilder head = new StringBuilder();
+		while (!head.toString().endsWith("\r\n\r\n")) {
+			int c = in.read();
+			if (c == -1) {
+				return;
+			}
+			head.append((char) c);
+		}
+		
+		String headers = head.toString().toLowerCase();
+		int start = headers.indexOf("content-length:") + "content-length:".length();
+		int length = Integer.parseInt(headers.substring(start, headers.indexOf("\r\n", start)).trim());
+		for (int i = 0; i < length; i++) {
+			in.read();
+		}
+		
+		OutputStream out = socket.getOutputStream();
+		out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nOK".getBytes("ISO-8859-1"));
+		out.flush();
+	}
+}